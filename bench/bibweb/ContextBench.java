@@ -0,0 +1,175 @@
+package bibweb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bibweb.Namespace.LookupFailure;
+
+/** Times looking up macros in a Context against the list-of-layers design
+ *  it replaced, in which each level is a node that a lookup tries in turn
+ *  from the top, each miss throwing LookupFailure.
+ *
+ *  The stack is shaped like the one a publication is formatted under:
+ *  the builtin and script macros at the bottom, a generate block, a
+ *  pushed publication namespace, a section, and a brace group pushed and
+ *  popped around each round of lookups. Each round looks up the bottom
+ *  macros, some unbound names, and a field of the publication.
+ *
+ *  Usage: java bibweb.ContextBench [rounds per trial]
+ */
+public class ContextBench {
+	/** The operations being timed, on either design. */
+	interface Stack {
+		void push();
+		void push(Namespace n);
+		void pop();
+		void add(String name, String defn);
+		/** The definition of name, or null if it is unbound. */
+		CharSequence expansion(String name);
+	}
+
+	/** The design Context had before: a list of nodes, searched from the
+	 *  top, with each miss signalled by an exception. */
+	static final class Layers implements Stack {
+		interface Node {
+			CharSequence expansion(String name) throws LookupFailure;
+			void put(String name, String value);
+		}
+
+		static final class FixedNode implements Node {
+			final Namespace n;
+
+			FixedNode(Namespace n) {
+				this.n = n;
+			}
+
+			@Override public CharSequence expansion(String name) throws LookupFailure {
+				return n.lookup(name);
+			}
+
+			@Override public void put(String name, String value) {
+				throw new UnsupportedOperationException();
+			}
+		}
+
+		static final class MutableNode implements Node {
+			final Map<String, Macro> mappings = new HashMap<>();
+
+			@Override public CharSequence expansion(String name) throws LookupFailure {
+				Macro m = mappings.get(name);
+				if (m == null) throw Context.lookupFailed;
+				return m.text();
+			}
+
+			@Override public void put(String name, String value) {
+				mappings.put(name, new Macro(value));
+			}
+		}
+
+		private final List<Node> nodes = new ArrayList<>();
+		{
+			nodes.add(new MutableNode());
+		}
+
+		@Override public void push() {
+			nodes.add(new MutableNode());
+		}
+
+		@Override public void push(Namespace n) {
+			nodes.add(new FixedNode(n));
+		}
+
+		@Override public void pop() {
+			nodes.remove(nodes.size() - 1);
+		}
+
+		@Override public void add(String name, String defn) {
+			nodes.get(nodes.size() - 1).put(name, defn);
+		}
+
+		@Override public CharSequence expansion(String name) {
+			for (int i = nodes.size() - 1; i >= 0; i--) {
+				try {
+					return nodes.get(i).expansion(name);
+				} catch (LookupFailure e) {
+					// try the next node down
+				}
+			}
+			return null;
+		}
+	}
+
+	/** Context itself. */
+	static final class Shallow implements Stack {
+		private final Context c = new Context();
+
+		@Override public void push() {
+			c.push();
+		}
+
+		@Override public void push(Namespace n) {
+			c.push(n);
+		}
+
+		@Override public void pop() {
+			c.pop();
+		}
+
+		@Override public void add(String name, String defn) {
+			c.add(name, defn);
+		}
+
+		@Override public CharSequence expansion(String name) {
+			return c.expansion(name);
+		}
+	}
+
+	static final int BOUND = 60, UNBOUND = 20;
+	static final int LOOKUPS = BOUND + UNBOUND + 1;
+	static final String[] names = new String[BOUND + UNBOUND];
+	static {
+		for (int i = 0; i < names.length; i++) names[i] = "macro" + i;
+	}
+
+	/** Build the stack in s and do the given number of rounds of lookups
+	 *  on it. The result depends on every lookup. */
+	static long run(Stack s, Namespace pub, int rounds) {
+		long h = 0;
+		for (int i = 0; i < BOUND; i++) s.add(names[i], "body" + i);
+		s.push();
+		s.add("output", "pubs.html");
+		s.push(pub);
+		s.push();
+		s.add("sectiontitle", "Papers");
+		for (int r = 0; r < rounds; r++) {
+			s.push();
+			for (String name : names) {
+				CharSequence v = s.expansion(name);
+				if (v != null) h += v.length();
+			}
+			h += s.expansion("title").length();
+			s.pop();
+		}
+		return h;
+	}
+
+	public static void main(String[] args) {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Context pub = new Context();
+		for (int i = 0; i < 15; i++) pub.add("field" + i, "value" + i);
+		pub.add("title", "A Title");
+		for (int trial = 0; trial < 5; trial++) {
+			long t0 = System.nanoTime();
+			long h1 = run(new Layers(), pub, rounds);
+			long t1 = System.nanoTime();
+			long h2 = run(new Shallow(), pub, rounds);
+			long t2 = System.nanoTime();
+			if (h1 != h2) throw new AssertionError("the designs disagree");
+			double n = (double) rounds * LOOKUPS;
+			System.out.printf("layers %.1f ns/lookup, shallow %.1f ns/lookup%n",
+					(t1 - t0) / n, (t2 - t1) / n);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package bibweb;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import bibweb.Tex2HTML.T2HErr;
+
+/** Counts how many bytes Tex2HTML allocates per character it scans, with
+ *  the output going to a buffer that is reused, so that only the work of
+ *  the conversion itself is counted. Plain text and brace groups should
+ *  allocate next to nothing, since scope frames are only made when
+ *  something is defined in them. Invoking a macro that takes arguments
+ *  should not allocate buffers for its name and arguments, which are
+ *  pooled; before they were, such calls took 12.6 bytes per character.
+ *  Expanding macros into text is reported but not checked, since the
+ *  expansion makes its result.
+ *
+ *  Exits with status 1 if a checked case allocates more than its limit.
+ *
+ *  Usage: java bibweb.ConvertAllocation
+ */
+public class ConvertAllocation {
+	static final int SIZE = 1 << 16, TRIALS = 20;
+
+	static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	/** A kind of input, and the most bytes per character converting it
+	 *  may allocate, or a negative limit if it is not checked. */
+	static final class Case {
+		final String name, piece;
+		final double limit;
+
+		Case(String name, String piece, double limit) {
+			this.name = name;
+			this.piece = piece;
+			this.limit = limit;
+		}
+
+		/** Input of about SIZE characters made by repeating the piece. */
+		StringBuilder input() {
+			StringBuilder b = new StringBuilder(SIZE + piece.length());
+			while (b.length() < SIZE) b.append(piece);
+			return b;
+		}
+	}
+
+	/** The fewest bytes that converting s allocates per character, over
+	 *  several trials. A StringBuilder is converted without caching. */
+	static double bytesPerChar(Tex2HTML t, StringBuilder s) throws T2HErr, IOException {
+		StringBuilder out = new StringBuilder(4 * SIZE);
+		long thread = Thread.currentThread().getId();
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < TRIALS; i++) {
+			out.setLength(0);
+			long before = threads.getThreadAllocatedBytes(thread);
+			t.convert(s, out);
+			best = Math.min(best, threads.getThreadAllocatedBytes(thread) - before);
+		}
+		return (double) best / s.length();
+	}
+
+	public static void main(String[] args) throws T2HErr, IOException {
+		Tex2HTML t = new Tex2HTML(null);
+		t.addMacro("venue", "Proceedings of the \\emph{Symposium}");
+		t.addMacro("pair", "#1 and #2");
+		t.addMacro("nothing", "");
+		Case[] cases = {
+			new Case("text", "Plain words of a title, with punctuation. ", 0.05),
+			new Case("braces", "{Nested {brace {groups}} around} words {} ", 0.05),
+			new Case("calls", "\\nothing{an argument}{another} \\nothing ", 8),
+			new Case("macros", "In \\venue, {pages} 1--10 of \\pair{this}{that}. ", -1),
+		};
+		boolean ok = true;
+		for (Case c : cases) {
+			double b = bytesPerChar(t, c.input());
+			boolean over = c.limit >= 0 && b > c.limit;
+			System.out.printf("%-7s %6.3f bytes/char%s%n", c.name, b,
+					over ? "  (over " + c.limit + ")" : "");
+			if (over) ok = false;
+		}
+		if (!ok) System.exit(1);
+	}
+}
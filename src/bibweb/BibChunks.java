@@ -0,0 +1,247 @@
+package bibweb;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.jbibtex.BibTeXDatabase;
+import org.jbibtex.BibTeXEntry;
+import org.jbibtex.BibTeXObject;
+import org.jbibtex.BibTeXParser;
+import org.jbibtex.BibTeXString;
+import org.jbibtex.CrossReferenceValue;
+import org.jbibtex.Key;
+import org.jbibtex.KeyValue;
+import org.jbibtex.ParseException;
+import org.jbibtex.TokenMgrException;
+import org.jbibtex.Value;
+
+/** Parses the text of a large BibTeX file in pieces, in parallel. The
+ *  text is cut only before an "@" that begins a line outside any braces,
+ *  where the parser would start a new object anyway; a file with an "@"
+ *  elsewhere outside braces is not cut at all. Each piece is
+ *  parsed after a copy of the @string definitions that come before it,
+ *  and the objects are merged in their original order, so the database
+ *  is the one a single parse would build: later definitions of a key
+ *  replace earlier ones, and strings resolve to the definition in effect
+ *  where they are used. Cross-references are resolved again once all
+ *  the entries are known.
+ */
+final class BibChunks {
+	/** Smallest piece worth parsing on its own, in characters. */
+	static final int MIN_CHUNK = 1 << 20;
+
+	private final CharSequence text;
+	/** Where each piece starts; the last one ends at the end of text. */
+	private final List<Integer> starts = new ArrayList<>();
+	/** The @string definitions before each piece, and their keys. */
+	private final List<String> strings = new ArrayList<>();
+	private final List<List<String>> string_keys = new ArrayList<>();
+
+	private BibChunks(CharSequence t) {
+		text = t;
+	}
+
+	/** Parse text in up to n pieces on executor. Returns null if it cannot
+	 *  be cut into more than one piece, or if a piece did not come out as
+	 *  expected; the caller then parses it in one go. */
+	static BibTeXDatabase parse(CharSequence text, int n, ExecutorService executor)
+			throws IOException {
+		BibChunks c = new BibChunks(text);
+		c.split(Math.min(n, text.length() / MIN_CHUNK));
+		if (c.starts.size() < 2) return null;
+		return c.parse(executor);
+	}
+
+	/** The text of the file at path, decoded as a FileReader would, read
+	 *  through a memory mapping. */
+	static CharSequence map(String path) throws IOException {
+		try (FileChannel ch = FileChannel.open(Paths.get(path))) {
+			return Charset.defaultCharset().decode(
+					ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+		}
+	}
+
+	/** Find where to cut text into about n pieces of equal length, and
+	 *  the @string definitions that each piece needs. */
+	private void split(int n) {
+		StringBuilder defs = new StringBuilder();
+		List<String> keys = new ArrayList<>();
+		int len = text.length();
+		starts.add(0);
+		strings.add("");
+		string_keys.add(new ArrayList<>());
+		int[] objects = objects(text);
+		if (objects == null) return;
+		for (int i : objects) {
+			if (starts.size() < n && i >= (long) len * starts.size() / n) {
+				starts.add(i);
+				strings.add(defs.toString());
+				string_keys.add(new ArrayList<>(keys));
+			}
+			int open = stringOpen(text, i);
+			int end = open < 0 ? -1 : closing(text, open);
+			if (end > 0) {
+				keys.add(stringKey(text, open));
+				defs.append(text, i, end).append('\n');
+			}
+		}
+	}
+
+	/** The offsets of the "@"s in text where the parser starts an object:
+	 *  those that begin a line outside any braces. Null if there is an "@"
+	 *  elsewhere outside braces, since the parser starts an object there
+	 *  too, and where it ends up is anyone's guess. */
+	static int[] objects(CharSequence text) {
+		int[] at = new int[64];
+		int n = 0, len = text.length(), depth = 0;
+		boolean line_start = true;
+		for (int i = 0; i < len; i++) {
+			char c = text.charAt(i);
+			if (c == '{') depth++;
+			else if (c == '}') { if (depth > 0) depth--; }
+			else if (c == '@' && depth == 0) {
+				if (!line_start) return null;
+				if (n == at.length) at = Arrays.copyOf(at, 2 * n);
+				at[n++] = i;
+				int open = stringOpen(text, i);
+				int end = open < 0 ? -1 : closing(text, open);
+				if (end > 0) {
+					i = end - 1;
+					line_start = false;
+					continue;
+				}
+			}
+			if (c == '\n') line_start = true;
+			else if (!Character.isWhitespace(c)) line_start = false;
+		}
+		return Arrays.copyOf(at, n);
+	}
+
+	/** If an @string definition starts at i, the offset of the brace or
+	 *  parenthesis that opens it, and otherwise -1. */
+	static int stringOpen(CharSequence text, int i) {
+		int p = skipWhitespace(text, i + 1);
+		if (!regionMatches(text, p, "string")) return -1;
+		p = skipWhitespace(text, p + 6);
+		if (p == text.length()) return -1;
+		char c = text.charAt(p);
+		return c == '{' || c == '(' ? p : -1;
+	}
+
+	/** The offset just past the delimiter that closes the one at open, or
+	 *  -1 if there is none. */
+	static int closing(CharSequence text, int open) {
+		boolean braces = text.charAt(open) == '{';
+		int depth = 0;
+		for (int p = open; p < text.length(); p++) {
+			char c = text.charAt(p);
+			if (c == '{') depth++;
+			else if (c == '}') depth--;
+			if (braces ? depth == 0 : c == ')' && depth == 0)
+				return p + 1;
+		}
+		return -1;
+	}
+
+	/** The key defined by the @string definition opened at open. */
+	static String stringKey(CharSequence text, int open) {
+		int p = skipWhitespace(text, open + 1), st = p;
+		while (p < text.length() && !Character.isWhitespace(text.charAt(p))
+				&& text.charAt(p) != '=')
+			p++;
+		return text.subSequence(st, p).toString();
+	}
+
+	static int skipWhitespace(CharSequence text, int p) {
+		while (p < text.length() && Character.isWhitespace(text.charAt(p))) p++;
+		return p;
+	}
+
+	static boolean regionMatches(CharSequence text, int p, String s) {
+		if (p + s.length() > text.length()) return false;
+		return text.subSequence(p, p + s.length()).toString().equalsIgnoreCase(s);
+	}
+
+	private BibTeXDatabase parse(ExecutorService executor) throws IOException {
+		List<Callable<BibTeXDatabase>> pieces = new ArrayList<>();
+		for (int k = 0; k < starts.size(); k++) {
+			int end = k + 1 < starts.size() ? starts.get(k + 1) : text.length();
+			String piece = strings.get(k) + text.subSequence(starts.get(k), end);
+			pieces.add(() -> parsePiece(piece));
+		}
+		BibTeXDatabase db = new BibTeXDatabase();
+		try {
+			List<Future<BibTeXDatabase>> parsed = executor.invokeAll(pieces);
+			for (int k = 0; k < parsed.size(); k++) {
+				BibTeXDatabase d = parsed.get(k).get();
+				if (d == null) return null;
+				List<BibTeXObject> objects = d.getObjects();
+				List<String> keys = string_keys.get(k);
+				if (objects.size() < keys.size()) return null;
+				for (int i = 0; i < keys.size(); i++) {
+					BibTeXObject o = objects.get(i);
+					if (!(o instanceof BibTeXString)
+							|| !((BibTeXString) o).getKey().equals(new Key(keys.get(i))))
+						return null;
+				}
+				for (BibTeXObject o : objects.subList(keys.size(), objects.size()))
+					db.addObject(o);
+			}
+		} catch (InterruptedException e) {
+			return null;
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if (t instanceof IOException) throw (IOException) t;
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			return null;
+		}
+		resolveCrossReferences(db);
+		return db;
+	}
+
+	/** The database in piece, or null if there is no parser for it. */
+	static BibTeXDatabase parsePiece(String piece) throws IOException {
+		BibTeXParser parser;
+		try {
+			parser = new BibTeXParser();
+		} catch (TokenMgrException e) {
+			return null;
+		} catch (ParseException e) {
+			return null;
+		}
+		return parser.parseFully(new StringReader(piece));
+	}
+
+	/** Point each cross-reference at the entry it names in db, which may
+	 *  have been in another piece, or been replaced by a later entry with
+	 *  the same key. One that names no entry is left as parsed. */
+	static void resolveCrossReferences(BibTeXDatabase db) {
+		for (BibTeXObject o : db.getObjects()) {
+			if (!(o instanceof BibTeXEntry)) continue;
+			BibTeXEntry entry = (BibTeXEntry) o;
+			Value v = entry.getFields().get(BibTeXEntry.KEY_CROSSREF);
+			if (v == null) continue;
+			String name = v instanceof CrossReferenceValue
+					? ((CrossReferenceValue) v).getValue().toUserString()
+					: v.toUserString();
+			BibTeXEntry target = db.resolveEntry(new Key(name));
+			if (target == null) continue;
+			if (v instanceof CrossReferenceValue
+					&& ((CrossReferenceValue) v).getEntry() == target)
+				continue;
+			entry.addField(BibTeXEntry.KEY_CROSSREF,
+					new CrossReferenceValue(new KeyValue(name), target));
+		}
+	}
+}
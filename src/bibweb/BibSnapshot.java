@@ -0,0 +1,758 @@
+package bibweb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.jbibtex.BibTeXDatabase;
+import org.jbibtex.BibTeXEntry;
+import org.jbibtex.BibTeXObject;
+import org.jbibtex.BibTeXString;
+import org.jbibtex.CrossReferenceValue;
+import org.jbibtex.Key;
+import org.jbibtex.KeyValue;
+import org.jbibtex.StringValue;
+import org.jbibtex.Value;
+
+/** A binary snapshot of the database parsed from a bib file, kept in a
+ *  hidden file next to it, so that a later run can load the database
+ *  without parsing the file again. A snapshot records the path, size,
+ *  modification time and SHA-256 hash of the file it was made from; if
+ *  all of them still match, the database is read from it, each object
+ *  only when something asks for it. It holds the @string definitions and
+ *  entries in order, with the value of each as a user string, and the
+ *  key of each resolved cross-reference, which is all that is read from
+ *  a database here. A database holding any other kind of object is not
+ *  snapshotted. The snapshot ends with a CRC-32 of the rest of it, and
+ *  is not used at all unless that matches, so an object read from it
+ *  later cannot turn out to be garbled.
+ *
+ *  The objects are grouped by the block of the file they came from: the
+ *  text from the "@" that starts an object to the next one, as BibChunks
+ *  cuts it. With each block goes a hash of its text and a hash of what
+ *  the bare words in it resolved to, namely the @string definition then
+ *  in effect for each, itself identified by both hashes of its block. If
+ *  the file has changed, the blocks whose two hashes still match are
+ *  reused, and the runs of blocks in between are parsed again, after the
+ *  @string definitions they use; so changing a string forces
+ *  every block that uses it, directly or through another string, to be
+ *  parsed again. Cross-references are resolved again at the end, since
+ *  their targets may have changed. A file that BibChunks cannot cut, or
+ *  whose objects do not line up with its blocks, is kept as one block.
+ */
+final class BibSnapshot {
+	private static final int MAGIC = 0x42575342, // "BWSB"
+			VERSION = 3;
+	private static final byte STRING = 'S', ENTRY = 'E',
+			PLAIN = 0, CROSSREF = 1;
+
+	private final File bib, file;
+	private final String path;
+	private final long size, mtime;
+	private final byte[] hash;
+	private boolean current;
+	/** The blocks of the database the last load() rebuilt, if it did. */
+	private List<Block> rebuilt;
+
+	/** The objects parsed from one block of a file, and its hashes.
+	 *  Referrers are the entries whose cross-references were resolved
+	 *  when the snapshot was made. */
+	private static final class Block {
+		final byte[] text_hash, env_hash;
+		final List<BibTeXObject> objects;
+		final List<BibTeXEntry> referrers;
+
+		Block(byte[] t, byte[] e, List<BibTeXObject> o, List<BibTeXEntry> r) {
+			text_hash = t;
+			env_hash = e;
+			objects = o;
+			referrers = r;
+		}
+	}
+
+	/** The snapshot for the bib file at path, as it is now. */
+	BibSnapshot(String bibPath) throws IOException {
+		bib = new File(bibPath).getAbsoluteFile();
+		path = bib.getPath();
+		file = new File(bib.getParentFile(), "." + bib.getName() + ".snapshot");
+		size = bib.length();
+		mtime = bib.lastModified();
+		MessageDigest md = sha256();
+		try (FileChannel ch = FileChannel.open(bib.toPath())) {
+			md.update(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+		}
+		hash = md.digest();
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		}
+	}
+
+	/** Whether the last load() found the snapshot up to date, so that
+	 *  there is no need to save it again. */
+	boolean current() {
+		return current;
+	}
+
+	/** The database for the file as it is now, from the saved one and
+	 *  whatever parts of the file have changed since, or null if there
+	 *  is no snapshot, it cannot be read, or it is of no use. If the
+	 *  file has not changed, objects are only read from the snapshot as
+	 *  they are asked for. */
+	BibTeXDatabase load() {
+		current = false;
+		rebuilt = null;
+		if (!file.isFile()) return null;
+		try {
+			ByteBuffer in;
+			try (FileChannel ch = FileChannel.open(file.toPath())) {
+				in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			}
+			if (in.getInt() != MAGIC || in.getInt() != VERSION
+					|| !readString(in).equals(path) || !intact(in))
+				return null;
+			boolean same = in.getLong() == size;
+			same &= in.getLong() == mtime;
+			byte[] h = new byte[hash.length];
+			in.get(h);
+			same &= Arrays.equals(h, hash);
+			if (same) {
+				BibTeXDatabase db = new Lazy(in);
+				current = true;
+				return db;
+			}
+
+			List<Block> blocks = new ArrayList<>();
+			for (int n = in.getInt(); n > 0; n--) {
+				Block b = readBlock(in);
+				if (b == null) return null;
+				blocks.add(b);
+			}
+			return rebuild(blocks);
+		} catch (IOException | RuntimeException e) {
+			return null; // including a truncated snapshot
+		}
+	}
+
+	/** Whether the snapshot in is as it was saved: its last four bytes
+	 *  are the CRC-32 of the rest. */
+	private static boolean intact(ByteBuffer in) {
+		int end = in.limit() - 4;
+		if (end < in.position()) return false;
+		ByteBuffer body = in.duplicate();
+		body.position(0);
+		body.limit(end);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		return (int) crc.getValue() == in.getInt(end);
+	}
+
+	/** A database from an up to date snapshot, which reads each object
+	 *  only when it is first asked for, along with the entry it
+	 *  cross-references. Until then an entry costs its key and where it
+	 *  is, so a script that uses a few entries of a large file never
+	 *  holds the fields of the rest. */
+	@SuppressWarnings("serial")
+	private static final class Lazy extends BibTeXDatabase {
+		private final ByteBuffer in;
+		private final int[] offsets;
+		private final BibTeXObject[] objects;
+		/** The index of the last entry and @string with each key, in the
+		 *  order the keys first appear. */
+		private final Map<Key, Integer> entries = new LinkedHashMap<>(),
+				strings = new LinkedHashMap<>();
+		private final List<BibTeXObject> list = new AbstractList<BibTeXObject>() {
+			@Override public BibTeXObject get(int i) {
+				return object(i);
+			}
+
+			@Override public int size() {
+				return offsets.length;
+			}
+		};
+
+		/** Index the blocks that follow in in. */
+		Lazy(ByteBuffer in) {
+			this.in = in;
+			int[] at = new int[1024];
+			int n = 0;
+			for (int b = in.getInt(); b > 0; b--) {
+				in.position(in.position() + 64); // the hashes
+				for (int m = in.getInt(); m > 0; m--) {
+					if (n == at.length) at = Arrays.copyOf(at, 2 * n);
+					at[n] = in.position();
+					switch (in.get()) {
+					case STRING:
+						strings.put(new Key(readString(in)), n);
+						skipString(in);
+						break;
+					case ENTRY:
+						skipString(in);
+						entries.put(new Key(readString(in)), n);
+						for (int f = in.getInt(); f > 0; f--) {
+							skipString(in);
+							in.get();
+							skipString(in);
+						}
+						break;
+					default:
+						throw new IllegalStateException("Unknown object in snapshot");
+					}
+					n++;
+				}
+			}
+			offsets = Arrays.copyOf(at, n);
+			objects = new BibTeXObject[n];
+		}
+
+		private synchronized BibTeXObject object(int i) {
+			if (objects[i] == null) {
+				List<BibTeXEntry> referrers = new ArrayList<>(1);
+				ByteBuffer b = in.duplicate();
+				b.position(offsets[i]);
+				objects[i] = readObject(b, referrers);
+				for (BibTeXEntry e : referrers) {
+					String name = e.getFields().get(BibTeXEntry.KEY_CROSSREF).toUserString();
+					BibTeXEntry target = resolveEntry(new Key(name));
+					if (target != null)
+						e.addField(BibTeXEntry.KEY_CROSSREF,
+								new CrossReferenceValue(new KeyValue(name), target));
+				}
+			}
+			return objects[i];
+		}
+
+		@Override public List<BibTeXObject> getObjects() {
+			return list;
+		}
+
+		@Override public BibTeXEntry resolveEntry(Key k) {
+			Integer i = entries.get(k);
+			return i == null ? null : (BibTeXEntry) object(i);
+		}
+
+		@Override public BibTeXString resolveString(Key k) {
+			Integer i = strings.get(k);
+			return i == null ? null : (BibTeXString) object(i);
+		}
+
+		@Override public Map<Key, BibTeXEntry> getEntries() {
+			return view(entries);
+		}
+
+		@Override public Map<Key, BibTeXString> getStrings() {
+			return view(strings);
+		}
+
+		/** An unmodifiable map from the keys of index to their objects,
+		 *  which only reads an object when its value is asked for. */
+		private <T extends BibTeXObject> Map<Key, T> view(Map<Key, Integer> index) {
+			return new AbstractMap<Key, T>() {
+				@SuppressWarnings("unchecked")
+				@Override public T get(Object k) {
+					Integer i = index.get(k);
+					return i == null ? null : (T) object(i);
+				}
+
+				@Override public boolean containsKey(Object k) {
+					return index.containsKey(k);
+				}
+
+				@Override public int size() {
+					return index.size();
+				}
+
+				@Override public Set<Key> keySet() {
+					return Collections.unmodifiableSet(index.keySet());
+				}
+
+				@Override public Set<Map.Entry<Key, T>> entrySet() {
+					return new AbstractSet<Map.Entry<Key, T>>() {
+						@Override public Iterator<Map.Entry<Key, T>> iterator() {
+							Iterator<Key> i = index.keySet().iterator();
+							return new Iterator<Map.Entry<Key, T>>() {
+								@Override public boolean hasNext() {
+									return i.hasNext();
+								}
+
+								@Override public Map.Entry<Key, T> next() {
+									Key k = i.next();
+									return new AbstractMap.SimpleImmutableEntry<>(k, get(k));
+								}
+							};
+						}
+
+						@Override public int size() {
+							return index.size();
+						}
+					};
+				}
+			};
+		}
+
+		@Override public void addObject(BibTeXObject o) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override public void removeObject(BibTeXObject o) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/** The database for the changed file, reusing the blocks that are
+	 *  still the same; null if no block is. */
+	private BibTeXDatabase rebuild(List<Block> saved) throws IOException {
+		String text = BibChunks.map(path).toString();
+		int[] at = BibChunks.objects(text);
+		if (at == null) return null;
+		Walk w = new Walk(text, at);
+		Map<ByteBuffer, Deque<Block>> by_text = new HashMap<>();
+		for (Block b : saved)
+			by_text.computeIfAbsent(ByteBuffer.wrap(b.text_hash), k -> new ArrayDeque<>()).add(b);
+
+		BibTeXDatabase db = new BibTeXDatabase();
+		List<Block> reused = new ArrayList<>();
+		int run = -1; // the first block of the run being collected to parse
+		boolean run_defines = false; // whether that run has @string definitions
+		for (int k = 0; k < at.length; k++) {
+			Deque<Block> same = by_text.get(ByteBuffer.wrap(w.text_hashes[k]));
+			if (same != null && run >= 0 && run_defines) {
+				if (!reparse(w, run, k, db)) return null;
+				run = -1;
+			}
+			byte[] env = same == null ? null : w.envHash(k);
+			Block b = same == null ? null : take(same, env);
+			if (b == null) {
+				if (run < 0) {
+					run = k;
+					run_defines = false;
+				}
+				run_defines |= BibChunks.stringOpen(text, at[k]) >= 0;
+				continue;
+			}
+			if (run >= 0) {
+				if (!reparse(w, run, k, db)) return null;
+				run = -1;
+			}
+			w.add(k, env, b.objects);
+			for (BibTeXObject o : b.objects) db.addObject(o);
+			reused.add(b);
+		}
+		if (reused.isEmpty()) return null;
+		if (run >= 0 && !reparse(w, run, at.length, db)) return null;
+		if (!resolve(db, reused)) return null;
+		rebuilt = w.blocks;
+		return db;
+	}
+
+	/** Remove and return the block in same that was parsed with the
+	 *  definitions env describes, if there is one. */
+	private static Block take(Deque<Block> same, byte[] env) {
+		for (Iterator<Block> i = same.iterator(); i.hasNext(); ) {
+			Block b = i.next();
+			if (Arrays.equals(b.env_hash, env)) {
+				i.remove();
+				return b;
+			}
+		}
+		return null;
+	}
+
+	/** Parse blocks from to to of the file after the @string definitions
+	 *  they use, adding the objects to db. False if they do not come out
+	 *  as expected. */
+	private static boolean reparse(Walk w, int from, int to, BibTeXDatabase db)
+			throws IOException {
+		List<Key> keys = new ArrayList<>();
+		String prefix = w.definitions(from, to, keys);
+		BibTeXDatabase d = BibChunks.parsePiece(prefix
+				+ w.text.subSequence(w.at[from], w.end(to - 1)).toString());
+		if (d == null) return false;
+		List<BibTeXObject> objects = d.getObjects();
+		int i = keys.size();
+		if (objects.size() < i) return false;
+		for (int j = 0; j < i; j++) {
+			BibTeXObject o = objects.get(j);
+			if (!(o instanceof BibTeXString)
+					|| !((BibTeXString) o).getKey().equals(keys.get(j)))
+				return false;
+		}
+		for (int k = from; k < to; k++) {
+			int n = w.claim(k, objects, i);
+			if (n < 0) return false;
+			List<BibTeXObject> mine = objects.subList(i, i + n);
+			w.add(k, w.envHash(k), mine);
+			for (BibTeXObject o : mine) db.addObject(o);
+			i += n;
+		}
+		return i == objects.size();
+	}
+
+	/** Resolve the cross-references in db again. False if one that was
+	 *  resolved in one of blocks no longer is. */
+	private static boolean resolve(BibTeXDatabase db, List<Block> blocks) {
+		BibChunks.resolveCrossReferences(db);
+		for (Block b : blocks)
+			for (BibTeXEntry e : b.referrers)
+				if (!(e.getFields().get(BibTeXEntry.KEY_CROSSREF) instanceof CrossReferenceValue))
+					return false;
+		return true;
+	}
+
+	/** Save db, the database load() rebuilt or one parsed from the whole
+	 *  file, as the snapshot of the file. Failing to is not an error; the
+	 *  next run just parses the file again. */
+	void save(BibTeXDatabase db) {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		CRC32 crc = new CRC32();
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(b, crc));
+		try {
+			List<Block> blocks = rebuilt != null ? rebuilt : blocks(db.getObjects());
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, path);
+			out.writeLong(size);
+			out.writeLong(mtime);
+			out.write(hash);
+			out.writeInt(blocks.size());
+			for (Block k : blocks) {
+				out.write(k.text_hash);
+				out.write(k.env_hash);
+				out.writeInt(k.objects.size());
+				for (BibTeXObject o : k.objects) {
+					if (o instanceof BibTeXString) {
+						BibTeXString s = (BibTeXString) o;
+						out.writeByte(STRING);
+						writeString(out, s.getKey().getValue());
+						writeString(out, s.getValue().toUserString());
+					} else if (o instanceof BibTeXEntry) {
+						if (!writeEntry(out, db, (BibTeXEntry) o)) return;
+					} else {
+						return;
+					}
+				}
+			}
+			out.flush();
+			out.writeInt((int) crc.getValue());
+			out.flush();
+			File tmp = File.createTempFile(file.getName(), null, file.getParentFile());
+			try {
+				Files.write(tmp.toPath(), b.toByteArray());
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tmp.delete();
+			}
+		} catch (IOException | RuntimeException e) {
+			// no snapshot this time
+		}
+	}
+
+	/** The blocks of the file as it is now, holding objects in order. */
+	private List<Block> blocks(List<BibTeXObject> objects) throws IOException {
+		String text = BibChunks.map(path).toString();
+		int[] at = BibChunks.objects(text);
+		if (at != null) {
+			Walk w = new Walk(text, at);
+			int i = 0, k = 0;
+			for (; k < at.length; k++) {
+				int n = w.claim(k, objects, i);
+				if (n < 0) break;
+				w.add(k, w.envHash(k), objects.subList(i, i + n));
+				i += n;
+			}
+			if (k == at.length && i == objects.size()) return w.blocks;
+		}
+		return Collections.singletonList(new Block(hash, sha256().digest(), objects,
+				Collections.emptyList()));
+	}
+
+	/** Goes through the blocks of a file in order, keeping track of the
+	 *  @string definitions in effect. */
+	private static final class Walk {
+		final String text;
+		final int[] at;
+		final byte[][] text_hashes;
+		final MessageDigest md = sha256();
+		/** For each string, its definition in effect: the hashes of its
+		 *  block, hashed together, and the block itself. */
+		final Map<Key, byte[]> defs = new HashMap<>();
+		final Map<Key, Integer> def_blocks = new HashMap<>();
+		/** For each block holding only @string definitions, the blocks
+		 *  with the definitions it used. */
+		final int[][] uses;
+		final List<Block> blocks = new ArrayList<>();
+
+		Walk(String t, int[] a) {
+			text = t;
+			at = a;
+			text_hashes = new byte[at.length][];
+			uses = new int[at.length][];
+			for (int k = 0; k < at.length; k++) {
+				md.update(text.substring(at[k], end(k)).getBytes(StandardCharsets.UTF_8));
+				text_hashes[k] = md.digest();
+			}
+		}
+
+		/** Where block k ends. */
+		int end(int k) {
+			return k + 1 < at.length ? at[k + 1] : text.length();
+		}
+
+		/** A hash of the definitions now in effect for the bare words in
+		 *  block k. Words without one are left out: the words are the
+		 *  same whenever the text is, so a word gaining or losing a
+		 *  definition changes the hash anyway. */
+		byte[] envHash(int k) {
+			if (!defs.isEmpty()) {
+				for (String word : words(text, at[k] + 1, end(k))) {
+					byte[] d = defs.get(new Key(word));
+					if (d != null) md.update(d);
+				}
+			}
+			return md.digest();
+		}
+
+		/** How many of objects, from i on, block k accounts for: none if
+		 *  it is a comment or preamble, and otherwise the one @string or
+		 *  entry with the key it starts with. -1 if they do not match. */
+		int claim(int k, List<BibTeXObject> objects, int i) {
+			int open = BibChunks.stringOpen(text, at[k]);
+			Key key;
+			boolean string = open >= 0;
+			if (string) {
+				key = new Key(BibChunks.stringKey(text, open));
+			} else {
+				int p = at[k] + 1, st = p;
+				while (p < text.length() && identifier(text.charAt(p))) p++;
+				String type = text.subSequence(st, p).toString();
+				if (type.equalsIgnoreCase("comment") || type.equalsIgnoreCase("preamble"))
+					return 0;
+				p = BibChunks.skipWhitespace(text, p);
+				if (p == text.length()) return -1;
+				char c = text.charAt(p);
+				if (c != '{' && c != '(') return -1;
+				char close = c == '{' ? '}' : ')';
+				p = BibChunks.skipWhitespace(text, p + 1);
+				st = p;
+				while (p < text.length() && text.charAt(p) != ',' && text.charAt(p) != close
+						&& !Character.isWhitespace(text.charAt(p)))
+					p++;
+				key = new Key(text.subSequence(st, p).toString());
+			}
+			if (i == objects.size()) return -1;
+			BibTeXObject o = objects.get(i);
+			if (string && o instanceof BibTeXString)
+				return ((BibTeXString) o).getKey().equals(key) ? 1 : -1;
+			if (!string && o instanceof BibTeXEntry)
+				return ((BibTeXEntry) o).getKey().equals(key) ? 1 : -1;
+			return -1;
+		}
+
+		/** Record that block k, whose words had the definitions env
+		 *  describes, holds objects. */
+		void add(int k, byte[] env, List<BibTeXObject> objects) {
+			blocks.add(new Block(text_hashes[k], env, objects, Collections.emptyList()));
+			if (objects.isEmpty()) return;
+			md.update(text_hashes[k]);
+			md.update(env);
+			byte[] def = md.digest();
+			boolean strings_only = true;
+			for (BibTeXObject o : objects)
+				if (!(o instanceof BibTeXString)) strings_only = false;
+			if (strings_only) uses[k] = definers(k).stream().mapToInt(Integer::intValue).toArray();
+			for (BibTeXObject o : objects) {
+				if (!(o instanceof BibTeXString)) continue;
+				Key key = ((BibTeXString) o).getKey();
+				defs.put(key, def);
+				def_blocks.put(key, k);
+			}
+		}
+
+		/** The blocks with the definitions now in effect for the words of
+		 *  block k. */
+		Set<Integer> definers(int k) {
+			Set<Integer> r = new TreeSet<>();
+			for (String word : words(text, at[k] + 1, end(k))) {
+				Integer d = def_blocks.get(new Key(word));
+				if (d != null) r.add(d);
+			}
+			return r;
+		}
+
+		/** The text of the @string definitions that blocks from to to
+		 *  use, directly or through other definitions, in their order in
+		 *  the file; their keys are added to keys. */
+		String definitions(int from, int to, List<Key> keys) {
+			Set<Integer> need = new TreeSet<>();
+			Deque<Integer> todo = new ArrayDeque<>();
+			for (int k = from; k < to; k++) todo.addAll(definers(k));
+			while (!todo.isEmpty()) {
+				int d = todo.pop();
+				if (need.add(d)) for (int u : uses[d]) todo.push(u);
+			}
+			StringBuilder b = new StringBuilder();
+			for (int d : need) {
+				b.append(text, at[d], end(d)).append('\n');
+				for (BibTeXObject o : blocks.get(d).objects)
+					keys.add(((BibTeXString) o).getKey());
+			}
+			return b.toString();
+		}
+	}
+
+	/** The words in text from start to end that are not in braces or
+	 *  quotes nested within the object, in order. These include all the
+	 *  strings the object uses, as well as its type, key and field
+	 *  names. */
+	private static List<String> words(String text, int start, int end) {
+		List<String> words = new ArrayList<>();
+		int depth = 0;
+		boolean quoted = false;
+		for (int p = start; p < end; ) {
+			char c = text.charAt(p);
+			if (c == '{') {
+				depth++;
+			} else if (c == '}') {
+				depth--;
+			} else if (c == '"' && depth <= 1) {
+				quoted = !quoted;
+			} else if (depth <= 1 && !quoted && identifier(c) && !Character.isDigit(c)) {
+				int st = p;
+				while (p < end && identifier(text.charAt(p))) p++;
+				words.add(text.substring(st, p));
+				continue;
+			}
+			p++;
+		}
+		return words;
+	}
+
+	private static boolean identifier(char c) {
+		return Character.isLetterOrDigit(c) || "_-:.+/".indexOf(c) >= 0;
+	}
+
+	/** Read a block written by save(), or return null if it holds
+	 *  something unexpected. */
+	private static Block readBlock(ByteBuffer in) {
+		byte[] t = new byte[32], e = new byte[32];
+		in.get(t);
+		in.get(e);
+		List<BibTeXObject> objects = new ArrayList<>();
+		List<BibTeXEntry> referrers = new ArrayList<>();
+		for (int n = in.getInt(); n > 0; n--) {
+			BibTeXObject o = readObject(in, referrers);
+			if (o == null) return null;
+			objects.add(o);
+		}
+		return new Block(t, e, objects, referrers);
+	}
+
+	/** Read an object written by save(), or return null if it is
+	 *  something unexpected. An entry with a cross-reference is added to
+	 *  referrers, and the cross-reference left as a name, to be resolved
+	 *  once the entry it names is known. */
+	private static BibTeXObject readObject(ByteBuffer in, List<BibTeXEntry> referrers) {
+		switch (in.get()) {
+		case STRING:
+			Key k = new Key(readString(in));
+			return new BibTeXString(k, value(readString(in)));
+		case ENTRY:
+			BibTeXEntry entry = new BibTeXEntry(new Key(readString(in)),
+					new Key(readString(in)));
+			for (int m = in.getInt(); m > 0; m--) {
+				Key f = new Key(readString(in));
+				if (in.get() == CROSSREF) referrers.add(entry);
+				entry.addField(f, value(readString(in)));
+			}
+			return entry;
+		default:
+			return null;
+		}
+	}
+
+	/** Write e, unless it has a cross-reference to an entry other than
+	 *  the one its name finds in db, which a snapshot cannot represent. */
+	private static boolean writeEntry(DataOutputStream out, BibTeXDatabase db, BibTeXEntry e)
+			throws IOException {
+		out.writeByte(ENTRY);
+		writeString(out, e.getType().getValue());
+		writeString(out, e.getKey().getValue());
+		Map<Key, Value> fields = e.getFields();
+		out.writeInt(fields.size());
+		for (Map.Entry<Key, Value> f : fields.entrySet()) {
+			Value v = f.getValue();
+			writeString(out, f.getKey().getValue());
+			if (v instanceof CrossReferenceValue) {
+				CrossReferenceValue x = (CrossReferenceValue) v;
+				String name = x.getValue().toUserString();
+				if (db.resolveEntry(new Key(name)) != x.getEntry()) return false;
+				out.writeByte(CROSSREF);
+				writeString(out, name);
+			} else {
+				out.writeByte(PLAIN);
+				writeString(out, v.toUserString());
+			}
+		}
+		return true;
+	}
+
+	private static Value value(String s) {
+		return new StringValue(s, StringValue.Style.BRACED);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] b = new byte[length(in)];
+		in.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static void skipString(ByteBuffer in) {
+		int n = length(in);
+		in.position(in.position() + n);
+	}
+
+	/** Read the length of a string written by writeString(), checking
+	 *  that the rest of it is there before anything is allocated for it. */
+	private static int length(ByteBuffer in) {
+		int n = in.getInt();
+		if (n < 0 || n > in.remaining()) throw new BufferUnderflowException();
+		return n;
+	}
+}
@@ -1,98 +1,174 @@
 package bibweb;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** A namespace that supports pushing and popping other namespaces.
  *  The current namespace can be either immutable or mutable. The initial
  *  state is a single-level mutable namespace to which new bindings can be
  *  added.
+ *
+ *  Bindings are kept shallow, in a persistent map from each name to its
+ *  innermost definition. Pushing a level remembers the current map and
+ *  popping it restores that map, so a lookup is one trie search, plus a
+ *  probe of each pushed namespace that sits above the level of that
+ *  definition. Because nothing is ever updated in place, fork() can hand
+ *  the current bindings to another context in constant time.
  */
 public class Context implements Namespace {
-	
-	interface Node {
-		String get(String name) throws LookupFailure;
-		void put(String name, String value);
-	}
-	
-	static class FixedNode implements Node {
-		Namespace fixed_mappings; // may be null
 
-		public FixedNode(Namespace n) {
-			fixed_mappings = n;
-		}
+	/** A definition of a name at a given level of the stack. */
+	static final class Binding {
+		final Macro macro;
+		final int level;
 
-		@Override
-		public String get(String name) throws LookupFailure {
-			return fixed_mappings.lookup(name);
+		Binding(Macro m, int l) {
+			macro = m;
+			level = l;
 		}
+	}
 
-		@Override
-		public void put(String name, String value) {
-			throw new UnsupportedOperationException();
+	/** A pushed namespace, with the ones pushed before it. */
+	static final class Fixed {
+		final Namespace namespace;
+		final int level;
+		final Fixed next; // may be null
+
+		Fixed(Namespace n, int l, Fixed nx) {
+			namespace = n;
+			level = l;
+			next = nx;
 		}
 	}
-	
-	static class MutableNode implements Node {
-		Map<String, String> mappings = new HashMap<>();
 
-		@Override
-		public String get(String name) throws LookupFailure {
-			if (!mappings.containsKey(name))
-				throw lookupFailed;
-			return mappings.get(name);
-		}
+	private HashTrie<Binding> bindings = HashTrie.empty();
+	private Fixed fixed = null; // innermost first
 
-		@Override
-		public void put(String name, String value) {
-			mappings.put(name, value);			
-		}
+	/** The bindings at the point each level was pushed. Level 0 is the
+	 *  initial mutable namespace, or the level a fork was taken at. */
+	private HashTrie<?>[] saved;
+	private int level, base;
+
+	static public LookupFailure lookupFailed = new LookupFailure();
+
+	/** Changed whenever the visible bindings may have changed, to a
+	 *  number no context has had before. */
+	private long version = newVersion();
+	private static final AtomicLong versions = new AtomicLong();
+
+	public Context() {
+		saved = new HashTrie<?>[16];
 	}
 
-	private List<Node> nodes;
-	{
-		nodes = new ArrayList<Node>();
-		nodes.add(new MutableNode());
+	private Context(Context c) {
+		bindings = c.bindings;
+		fixed = c.fixed;
+		level = base = c.level;
+		saved = new HashTrie<?>[level + 16];
+	}
+
+	/** A context that starts out with the bindings now visible in this one,
+	 *  at the same depth. Afterwards the two are independent and may be
+	 *  used from different threads; the bindings are shared, not copied.
+	 *  The fork cannot be popped below its starting depth. */
+	public Context fork() {
+		return new Context(this);
 	}
 
-	static public LookupFailure lookupFailed = new LookupFailure();
-	
 	public String lookup(String name) throws LookupFailure {
-		for (int i = nodes.size() - 1; i >= 0; i--) {
-			Node n = nodes.get(i);
-			try {
-				return n.get(name);
-			} catch (LookupFailure e) {
-				// try the next node up the stack
-			}
+		String s = find(name);
+		if (s == null) throw lookupFailed;
+		return s;
+	}
+
+	@Override public String find(String name) {
+		Binding b = bindings.get(name);
+		String s = findFixed(name, b);
+		if (s != null) return s;
+		return b == null ? null : b.macro.body;
+	}
+
+	/** The definition of name, as input for the expander, or null if it
+	 *  is unbound. Definitions added to this context come back as a
+	 *  Macro.Text, so that their bodies are only lexed once. */
+	public CharSequence expansion(String name) {
+		Binding b = bindings.get(name);
+		String s = findFixed(name, b);
+		if (s != null) return s;
+		return b == null ? null : b.macro.text();
+	}
+
+	/** Look up name in the pushed namespaces that are above b. */
+	private String findFixed(String name, Binding b) {
+		int floor = b == null ? -1 : b.level;
+		for (Fixed f = fixed; f != null && f.level > floor; f = f.next) {
+			String s = f.namespace.find(name);
+			if (s != null) return s;
 		}
-		throw lookupFailed;		
+		return null;
+	}
+
+	/** Whether c has the same bindings and pushed namespaces visible as
+	 *  this one, so that every name resolves the same in both. */
+	boolean sameBindings(Context c) {
+		return bindings == c.bindings && fixed == c.fixed;
 	}
 
 	public void push() {
-		nodes.add(new MutableNode());
+		if (++level == saved.length) saved = Arrays.copyOf(saved, 2 * level);
+		saved[level] = bindings;
 	}
-	
+
 	public void push(Namespace n) {
-		nodes.add(new FixedNode(n));
+		push();
+		fixed = new Fixed(n, level, fixed);
+		version = newVersion();
 	}
 
+	@SuppressWarnings("unchecked")
 	public void pop() {
-		nodes.remove(nodes.size()-1);
+		if (level == base) throw new IndexOutOfBoundsException("pop of empty context");
+		HashTrie<Binding> b = (HashTrie<Binding>) saved[level];
+		saved[level] = null;
+		if (b != bindings) version = newVersion();
+		bindings = b;
+		if (fixed != null && fixed.level == level) {
+			fixed = fixed.next;
+			version = newVersion();
+		}
+		level--;
 	}
-	
-    // defn may be null
+
+	// defn may be null
 	public void add(String name, String defn) {
 		if (defn == null) {
 			System.err.println("Warning: " + name + " bound to null");
 			return;
 		}
-		nodes.get(nodes.size()-1).put(name,  defn);
+		if (fixed != null && fixed.level == level)
+			throw new UnsupportedOperationException();
+		bindings = bindings.put(name, new Binding(new Macro(defn), level));
+		version = newVersion();
+	}
+
+	/** A number that changes whenever a name may have come to resolve
+	 *  differently: on add(), on pushing a namespace, on popping a level
+	 *  with bindings, and on touch(). No two contexts have the same one,
+	 *  so it tells them apart as well. */
+	public long version() {
+		return version;
+	}
+
+	private static long newVersion() {
+		return versions.incrementAndGet();
+	}
+
+	/** Record that the contents of a pushed namespace may have changed. */
+	public void touch() {
+		version = newVersion();
 	}
 
 	public int depth() {
-		return nodes.size() - 1;
+		return level;
 	}
 }
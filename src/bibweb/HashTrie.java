@@ -0,0 +1,110 @@
+package bibweb;
+
+/** An immutable map from strings, stored as a hash array mapped trie.
+ *  put() returns a new map that shares everything with the old one except
+ *  the nodes on the path to the changed entry, so keeping an old version
+ *  around costs nothing, and versions can be read from any thread.
+ */
+final class HashTrie<V> {
+	/** A trie node. Each set bit of bitmap has a pair of slots: a key and
+	 *  its value, or null and the child node for keys whose hashes share
+	 *  the bits so far. Below the last level of hash bits, nodes hold keys
+	 *  with equal hashes as plain pairs and have no bitmap. */
+	private static final class Node {
+		final int bitmap;
+		final Object[] slots;
+
+		Node(int b, Object[] s) {
+			bitmap = b;
+			slots = s;
+		}
+	}
+
+	private static final int BITS = 5, MASK = (1 << BITS) - 1;
+	private static final Node EMPTY_NODE = new Node(0, new Object[0]);
+	private static final HashTrie<?> EMPTY = new HashTrie<>(EMPTY_NODE);
+
+	private final Node root;
+
+	private HashTrie(Node r) {
+		root = r;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <V> HashTrie<V> empty() {
+		return (HashTrie<V>) EMPTY;
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/** The value of key, or null if it has none. */
+	@SuppressWarnings("unchecked")
+	V get(String key) {
+		int h = hash(key);
+		Node n = root;
+		for (int shift = 0; ; shift += BITS) {
+			Object[] s = n.slots;
+			if (shift >= 32) {
+				for (int i = 0; i < s.length; i += 2)
+					if (key.equals(s[i])) return (V) s[i + 1];
+				return null;
+			}
+			int bit = 1 << ((h >>> shift) & MASK);
+			if ((n.bitmap & bit) == 0) return null;
+			int i = 2 * Integer.bitCount(n.bitmap & (bit - 1));
+			Object k = s[i];
+			if (k != null) return key.equals(k) ? (V) s[i + 1] : null;
+			n = (Node) s[i + 1];
+		}
+	}
+
+	/** This map with key bound to value. */
+	HashTrie<V> put(String key, V value) {
+		return new HashTrie<>(put(root, 0, key, hash(key), value));
+	}
+
+	private static Node put(Node n, int shift, String key, int h, Object value) {
+		Object[] s = n.slots;
+		if (shift >= 32) {
+			for (int i = 0; i < s.length; i += 2)
+				if (key.equals(s[i])) return new Node(0, with(s, i + 1, value));
+			Object[] t = new Object[s.length + 2];
+			System.arraycopy(s, 0, t, 0, s.length);
+			t[s.length] = key;
+			t[s.length + 1] = value;
+			return new Node(0, t);
+		}
+		int bit = 1 << ((h >>> shift) & MASK);
+		int i = 2 * Integer.bitCount(n.bitmap & (bit - 1));
+		if ((n.bitmap & bit) == 0) {
+			Object[] t = new Object[s.length + 2];
+			System.arraycopy(s, 0, t, 0, i);
+			t[i] = key;
+			t[i + 1] = value;
+			System.arraycopy(s, i, t, i + 2, s.length - i);
+			return new Node(n.bitmap | bit, t);
+		}
+		Object k = s[i];
+		if (k == null)
+			return new Node(n.bitmap, with(s, i + 1, put((Node) s[i + 1], shift + BITS, key, h, value)));
+		if (key.equals(k))
+			return new Node(n.bitmap, with(s, i + 1, value));
+		// split the existing entry and the new one into a child node
+		String k2 = (String) k;
+		Node child = put(put(EMPTY_NODE, shift + BITS, k2, hash(k2), s[i + 1]),
+				shift + BITS, key, h, value);
+		Object[] t = with(s, i, null);
+		t[i + 1] = child;
+		return new Node(n.bitmap, t);
+	}
+
+	/** A copy of s with s[i] replaced by v. */
+	private static Object[] with(Object[] s, int i, Object v) {
+		Object[] t = s.clone();
+		t[i] = v;
+		return t;
+	}
+}
@@ -16,6 +16,22 @@ interface Input {
 	 *  does not consume the next character. */
 	char peek() throws NoSuchElementException;
 
-	/** Put all the characters in s at the head of the input stream. */
-	void push(String s);
+	/** Put all the characters in s at the head of the input stream. If s
+	 *  is a Macro.Text, its tokens are available through macro(). */
+	void push(CharSequence s);
+
+	/** The compiled macro that the next character comes from, or null
+	 *  if it does not come from one. */
+	Macro macro();
+
+	/** The offset of the next character within the body of macro(). */
+	int offset();
+
+	/** The offset in the body of macro() just past the last character
+	 *  that was pushed with it. */
+	int limit();
+
+	/** Skip ahead to offset i in the body of macro(), where
+	 *  offset() <= i <= limit(). */
+	void skipTo(int i);
 }
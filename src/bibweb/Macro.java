@@ -0,0 +1,227 @@
+package bibweb;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** A macro definition. The body is lexed once, the first time it is
+ *  expanded, into a table of tokens indexed by their starting offset: runs
+ *  of plain text, runs of whitespace, macro names, brace groups and #n
+ *  parameter slots. The expander consults this table to consume whole
+ *  tokens at a time instead of rescanning the body character by character
+ *  on every expansion.
+ */
+class Macro {
+	final String body;
+
+	/** Token kinds. Offsets that do not start a token are NONE and are
+	 *  processed one character at a time. */
+	static final byte NONE = 0,
+		TEXT = 1,    // characters with no meaning to the expander
+		SPACE = 2,   // whitespace other than \r
+		NAME = 3,    // \ followed by an alphabetic macro name
+		SPECIAL = 4, // like NAME, but naming a special macro
+		OPEN = 5,    // { with a matching } in the body
+		PARAM = 6;   // #n
+
+	/** The token table. It is built once and never changed, so a macro
+	 *  can be shared between threads that expand it. */
+	private static final class Tokens {
+		final byte[] kinds;
+		final int[] ends;
+		final String[] names;
+		final int[] slots; // offsets of the PARAM tokens, in order
+		final int[] slot_args; // the argument number of each slot
+
+		Tokens(byte[] k, int[] e, String[] n, int[] s, int[] sa) {
+			kinds = k;
+			ends = e;
+			names = n;
+			slots = s;
+			slot_args = sa;
+		}
+	}
+
+	private volatile Tokens tokens; // null until compiled
+	private Text text;
+
+	Macro(String body) {
+		this.body = body;
+	}
+
+	public String toString() {
+		return body;
+	}
+
+	/** The whole body, as input for the expander. */
+	Text text() {
+		Text t = text;
+		if (t == null) text = t = new Text(this, 0, body.length());
+		return t;
+	}
+
+	/** Kind of the token starting at offset i. Text and whitespace runs
+	 *  are recorded at every offset they cover, so a run can be resumed
+	 *  after part of it has been read character by character. */
+	byte kind(int i) {
+		return tokens.kinds[i];
+	}
+
+	/** Offset just past the token starting at i. For OPEN, this is the
+	 *  offset of the matching closing brace. */
+	int end(int i) {
+		return tokens.ends[i];
+	}
+
+	/** The name of the macro invoked by the NAME or SPECIAL token at i. */
+	String name(int i) {
+		return tokens.names[i];
+	}
+
+	/** Build the token table, if that has not been done yet. Threads that
+	 *  race to compile the same macro build equal tables. */
+	void compile() {
+		if (tokens == null) tokens = lex();
+	}
+
+	private Tokens lex() {
+		int n = body.length();
+		byte[] k = new byte[n];
+		int[] e = new int[n];
+		String[] nm = new String[n];
+		int[] sl = new int[n], sa = new int[n];
+		int nslots = 0;
+		int[] open = new int[n];
+		int depth = 0;
+		// Braces are matched by raw counting, as macro arguments are
+		// collected, so escaped braces count too.
+		for (int i = 0; i < n; i++) {
+			char c = body.charAt(i);
+			if (c == '{') {
+				open[depth++] = i;
+			} else if (c == '}' && depth > 0) {
+				int o = open[--depth];
+				k[o] = OPEN;
+				e[o] = i;
+			}
+		}
+		int i = 0;
+		while (i < n) {
+			char c = body.charAt(i);
+			if (c == '\\') {
+				int j = i + 1;
+				while (j < n && Character.isAlphabetic(body.charAt(j))) j++;
+				if (j > i + 1) {
+					String name = body.substring(i + 1, j);
+					k[i] = Tex2HTML.special_macros.contains(name) ? SPECIAL : NAME;
+					e[i] = j;
+					nm[i] = name;
+					i = j;
+				} else {
+					// the escaped character belongs to the backslash
+					if (j < n) k[j] = NONE;
+					i = j + 1;
+				}
+			} else if (c == '#') {
+				int j = i + 1;
+				while (j < n && Character.isDigit(body.charAt(j))) j++;
+				if (j > i + 1) {
+					k[i] = PARAM;
+					e[i] = j;
+					int a = 0;
+					for (int d = i + 1; d < j && a <= MAX_ARG; d++)
+						a = a * 10 + body.charAt(d) - '0';
+					sl[nslots] = i;
+					sa[nslots++] = a;
+				}
+				i = j;
+			} else if (isText(c) || isSpace(c)) {
+				boolean text = isText(c);
+				int j = i + 1;
+				while (j < n && (text ? isText(body.charAt(j)) : isSpace(body.charAt(j)))) j++;
+				for (int m = i; m < j; m++) {
+					k[m] = text ? TEXT : SPACE;
+					e[m] = j;
+				}
+				i = j;
+			} else {
+				i++;
+			}
+		}
+		return new Tokens(k, e, nm, Arrays.copyOf(sl, nslots), Arrays.copyOf(sa, nslots));
+	}
+
+	/** Larger argument numbers are all treated alike: never supplied. */
+	private static final int MAX_ARG = 1000;
+
+	/** Whether the body has any #n parameter slots. */
+	boolean hasParams() {
+		compile();
+		return tokens.slots.length > 0;
+	}
+
+	/** The body with each slot #n replaced by the nth argument, in one
+	 *  pass over the body. Arguments are inserted literally, and slots with
+	 *  no corresponding argument are left as written. An escaped \# does
+	 *  not start a slot. */
+	String substitute(List<? extends CharSequence> args) {
+		compile();
+		Tokens t = tokens;
+		int[] slots = t.slots, slot_args = t.slot_args;
+		int len = body.length();
+		for (CharSequence a : args) len += a.length();
+		StringBuilder b = new StringBuilder(len);
+		int last = 0;
+		for (int j = 0; j < slots.length; j++) {
+			int a = slot_args[j];
+			if (a < 1 || a > args.size()) continue;
+			b.append(body, last, slots[j]);
+			b.append(args.get(a - 1));
+			last = t.ends[slots[j]];
+		}
+		b.append(body, last, body.length());
+		return b.toString();
+	}
+
+	static boolean isText(char c) {
+		switch (c) {
+		case '\\': case '{': case '}': case '-': case '~': case '\r': case '#':
+		case (char) -1:
+			return false;
+		default:
+			return !Character.isWhitespace(c);
+		}
+	}
+
+	static boolean isSpace(char c) {
+		return c != '\r' && Character.isWhitespace(c);
+	}
+
+	/** The characters of a macro body between two offsets. Pushing a Text
+	 *  onto an Input lets the expander use the token table of its macro. */
+	static class Text implements CharSequence {
+		final Macro macro;
+		final int start, end;
+
+		Text(Macro m, int s, int e) {
+			macro = m;
+			start = s;
+			end = e;
+		}
+
+		@Override public int length() {
+			return end - start;
+		}
+
+		@Override public char charAt(int i) {
+			return macro.body.charAt(start + i);
+		}
+
+		@Override public CharSequence subSequence(int s, int e) {
+			return new Text(macro, start + s, start + e);
+		}
+
+		@Override public String toString() {
+			return macro.body.substring(start, end);
+		}
+	}
+}
@@ -3,23 +3,39 @@ package bibweb;
 import static bibweb.Parsing.*;
 import static java.lang.System.out;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import static java.util.Optional.empty;
 
 import org.jbibtex.BibTeXDatabase;
@@ -28,25 +44,75 @@ import org.jbibtex.BibTeXParser;
 import org.jbibtex.Key;
 import org.jbibtex.ParseException;
 import org.jbibtex.TokenMgrException;
+import org.jbibtex.Value;
 
+import bibweb.Namespace.LookupFailure;
 import bibweb.Parsing.ParseError;
 import bibweb.Tex2HTML.T2HErr;
-import easyIO.Recognizer;
-import easyIO.Regex;
 import easyIO.Scanner;
 import easyIO.UnexpectedInput;
 
 public class Main {
 	protected String [] args;
     protected Maybe<String> inputFile;
-	protected Map<String, BibTeXDatabase> dbs;
+	protected Map<String, BibTeXDatabase> dbs; // in the order read
+	/** The bib file whose entry each key names: the first one read that
+	 *  has an entry with that key. */
+	private final Map<Key, String> entry_files = new HashMap<>();
 	protected HashMap<String, Publication> pubs;
 	/** Records the generated namespace for each publication. */
-	Map<Publication, Namespace> pub_defns = new HashMap<>();
+	Map<Publication, PubContext> pub_defns = new ConcurrentHashMap<>();
+	/** The bindings of the registered namespaces in pub_defns that were
+	 *  used most recently. */
+	private final BindingsCache pub_bindings = new BindingsCache();
+	/** The converter that the last namespace was made with. */
+	private volatile Tex2HTML snapshot;
+	/** For each publication, the namespace for it that the task coming
+	 *  first in serial order has made ahead of its turn, so far. Later
+	 *  tasks take it on, as serial generation would. Cleared when there
+	 *  are no tasks left to commit. */
+	private final Map<Publication, PubContext> made_ahead = new ConcurrentHashMap<>();
+	/** How many tasks have been started that are not part of another. */
+	private int root_tasks = 0;
+	/** How many publication namespaces were made, and how many times
+	 *  each deferred binding in them was worked out. */
+	private final AtomicInteger pub_contexts = new AtomicInteger();
+	private final Map<String, AtomicInteger> deferred_counts = new ConcurrentHashMap<>();
 
 	protected boolean generated = false;
+	/** Whether to report how well the caches did at the end. */
+	protected boolean stats = false;
 	protected Tex2HTML t2h;
 
+	/** Number of threads that read bib files and generate output. */
+	protected int threads = 1;
+	private ForkJoinPool pool; // created on first use
+
+	/** Number of publication attributes changed with \setpubinfo. */
+	private int pub_updates = 0;
+	/** Number of times publications were added to pubs. */
+	private int pub_imports = 0;
+	/** The index of pubs for section selects, when last made. */
+	private volatile PubIndex pub_index;
+
+	/** The task that the current thread is doing, if any. */
+	private final ThreadLocal<Task> task = new ThreadLocal<>();
+	/** Where console output of the current thread is being held, if
+	 *  anywhere: stdout first, then stderr. */
+	private final ThreadLocal<ByteArrayOutputStream[]> held = new ThreadLocal<>();
+	/** Where console output of the current thread is being captured by
+	 *  capture(), if it is. */
+	private final ThreadLocal<Held> captured = new ThreadLocal<>();
+	private PrintStream sysout, syserr; // while console output is routed
+	/** For each publication, the parts of its namespace whose console
+	 *  output has been printed since the namespace was last refreshed. */
+	private final Map<Publication, Set<String>> reported = new ConcurrentHashMap<>();
+
+	/** Bib files being read ahead of their turn, not yet added to dbs. */
+	private final List<BibFile> bibfiles = new ArrayList<>();
+	/** Generate blocks started ahead of their turn, not yet written out. */
+	private final List<Generation> generations = new ArrayList<>();
+
     public static final String VERSION = "1.06"; 
 
 	public static final String [] month_names = { "January", "February", "March",
@@ -64,9 +130,15 @@ public class Main {
 	protected Main(String[] args) {
 		this.args = args;
 		pubs = new HashMap<String, Publication>();
-		ExtInfo pub_access = new PubInfo(pubs, p -> new PubContext(p));
+		ExtInfo pub_access = new PubInfo(pubs, p -> new PubContext(p)) {
+			@Override public void put(String key, String field, String value)
+					throws LookupFailure {
+				super.put(key, field, value);
+				pub_updates++;
+			}
+		};
 		t2h = new Tex2HTML(pub_access);
-		dbs = new HashMap<>();
+		dbs = new LinkedHashMap<>();
 		inputFile = Maybe.none();
 		addEnvMacros();
 		parseArgs();
@@ -74,7 +146,7 @@ public class Main {
 
 	protected static void usage() {
 		System.err.println("bibweb version " + VERSION);
-		System.err.println("Usage: bibweb [--help | --defns | <script-file> ]");
+		System.err.println("Usage: bibweb [--help | --defns | [--stats] <script-file> ]");
 	}
 
 	public static void main(String[] args) {
@@ -82,6 +154,10 @@ public class Main {
 		me.run();
 	}
 	protected void parseArgs() {
+		if (args.length == 2 && args[0].equals("--stats")) {
+			stats = true;
+			args = new String[] { args[1] };
+		}
 		if (args.length != 1) {
 			usage();
 			System.exit(1);
@@ -103,6 +179,8 @@ public class Main {
 			"Script commands:",
 			"  bibfile: <bibfile.bib>    % read a BibTeX bibliography file",
 			"  include: <script>         % read input from another bibweb script",
+			"  threads: <n>              % read and generate on n threads (0: one per core)",
+			"  pubcache: <n>             % keep the namespaces of up to n pubs in memory",
 			"  pubs: <publist>           % specify pubs to use (by key)",
 			"    <key>: <attributes>     % add attributes to publication",
 			"      <attr_name>: <val>    % add/modify an attribute with value <val>",
@@ -117,6 +195,8 @@ public class Main {
 			"      topic: <type>         % select pubs by topic",
 			"      newer: <pub>          % select pubs newer than <pub>",
 			"      <attr>: <value>       % select on other paper attribute",
+			"     limit: <n>             % list only the first n pubs selected (also top)",
+			"     offset: <n>            % skip the first n pubs selected",
 			"",
 			"Multiline commands and definitions use open brace ({) instead of a colon (:)",
 			"  and are closed by a closing brace on a line by itself.",
@@ -162,29 +242,70 @@ public class Main {
 	}
 
 	protected void runScript(Scanner sc) {
-		while (sc.hasNext()) {
-			runScriptLine(sc);
+		try {
+			while (sc.hasNext()) {
+				runScriptLine(sc);
+			}
+			finishBibFiles();
+			finishGenerations();
+		} finally {
+			restoreConsole();
 		}
 		if (!generated) {
 			out.println("No 'generate' command found, nothing generated.");
 		}
+		if (stats) reportStats();
+	}
+
+	/** Report how well the caches did. */
+	protected void reportStats() {
+		out.println("Expansion cache: " + t2h.cacheHits() + " hits, "
+				+ t2h.cacheMisses() + " misses.");
+		StringBuilder b = new StringBuilder("Deferred publication fields:");
+		for (Map.Entry<String, AtomicInteger> e : new TreeMap<>(deferred_counts).entrySet())
+			b.append(' ').append(e.getKey()).append(' ').append(e.getValue());
+		out.println(b + " (in " + pub_contexts + " namespaces).");
+		out.println("Publication namespace cache: " + pub_bindings.stats() + ".");
 	}
 
     private Optional<BibTeXEntry> findDB(String pubname) {
-        for (String dbname : dbs.keySet()) {
-            BibTeXDatabase db = dbs.get(dbname);
-            BibTeXEntry entry = db.resolveEntry(new Key(pubname));
-            if (entry != null) return Optional.of(entry);
-        }
-        return Optional.empty();
+        Key key = new Key(pubname);
+        String dbname = entry_files.get(key);
+        if (dbname == null) return Optional.empty();
+        return Optional.ofNullable(dbs.get(dbname).resolveEntry(key));
     }
+
+	/** Add the entries of db, read from bib file name, to entry_files.
+	 *  An entry whose key an earlier file already has is left out, with
+	 *  a warning if the two differ. */
+	private void indexEntries(String name, BibTeXDatabase db) {
+		for (Key key : db.getEntries().keySet()) {
+			String first = entry_files.putIfAbsent(key, name);
+			if (first == null || first.equals(name)) continue;
+			if (!sameEntry(db.resolveEntry(key), dbs.get(first).resolveEntry(key)))
+				out.println("Warning: BibTeX record " + key.getValue() + " in " + name
+						+ " differs from the one in " + first + ", which is used");
+		}
+	}
+
+	private static boolean sameEntry(BibTeXEntry a, BibTeXEntry b) {
+		if (!a.getType().equals(b.getType())) return false;
+		Map<Key, Value> fa = a.getFields(), fb = b.getFields();
+		if (fa.size() != fb.size()) return false;
+		for (Map.Entry<Key, Value> f : fa.entrySet()) {
+			Value v = fb.get(f.getKey());
+			if (v == null || !v.toUserString().equals(f.getValue().toUserString()))
+				return false;
+		}
+		return true;
+	}
 	
 	private void readPublications(Scanner sc) {
 		boolean multiline = isMultilineValue(sc);
 		if (!multiline) {
 			readBibFile(sc, parseText(sc, false))
 				.ifPresent(db ->
-					importPubs(db));
+					importPubs(db, null));
 			return;
 		}
 		while (!rhsClosed(sc, multiline)) {
@@ -200,6 +321,7 @@ public class Main {
 				}
                 Publication p = new Publication(pubname, sc, entry);
                 pubs.put(pubname,  p);
+                pub_imports++;
 			} catch (ParseError exc) {
 				out.println("Parse error " + exc.getMessage() + " at " +
                             sc.location());
@@ -207,15 +329,19 @@ public class Main {
 		}
 	}
 
-	/* Import all publications from a BibTeX database
+	/* Import all publications from a BibTeX database. If it was read
+	 * from bib file dbname, leave out those whose keys name the entry of
+	 * an earlier file.
 	 */
-	private void importPubs(BibTeXDatabase db) {
+	private void importPubs(BibTeXDatabase db, String dbname) {
 		for (Key key : db.getEntries().keySet()) {
+			if (dbname != null && !dbname.equals(entry_files.get(key))) continue;
 			String pubname = key.getValue();
 			BibTeXEntry entry = db.getEntries().get(key);
 			entry.getKey().getValue();
 			Publication p = new Publication(pubname, entry);
 			pubs.put(pubname, p);
+			pub_imports++;
 		}
 	}
 
@@ -226,32 +352,107 @@ public class Main {
         out.println("No pubs block, automatically importing publications");
         for (String dbname : dbs.keySet()) {
             out.println("  importing from " + dbname);
-			importPubs(dbs.get(dbname));
+			importPubs(dbs.get(dbname), dbname);
         }
     }
 
 	Optional<BibTeXDatabase> readBibFile(Scanner sc, String bibFile) {
-		BibTeXParser parser;
-		try {
-			parser = new BibTeXParser();
-		} catch (TokenMgrException e) {
-			System.err.println("Failed reading bib file at " + sc.location());
-			return empty();
-		} catch (ParseException e) {
-			System.err.println("Failed reading bib file at " + sc.location());
-			return empty();
+		return new BibFile(sc, bibFile, false).finish();
+	}
+
+	/** Start reading bibFile on another thread. The script goes on, and
+	 *  the database is added to dbs by finishBibFiles(). */
+	private void startBibFile(Scanner sc, String bibFile) {
+		routeConsole();
+		bibfiles.add(new BibFile(sc, bibFile, true));
+	}
+
+	/** Add the databases of the bib files being read to dbs, in the order
+	 *  they were named, waiting for them as needed. */
+	private void finishBibFiles() {
+		for (BibFile f : bibfiles)
+			f.finish();
+		bibfiles.clear();
+	}
+
+	/** A bib file to be parsed, with what reading it reports. */
+	private class BibFile implements Callable<BibTeXDatabase> {
+		final String name, location;
+		BibTeXParser parser; // null if it could not be created
+		String path;
+		ForkJoinTask<BibTeXDatabase> parse; // if parsed on another thread
+		final ByteArrayOutputStream[] console = { new ByteArrayOutputStream(),
+				new ByteArrayOutputStream() };
+
+		/** If ahead, the file is parsed on another thread, and console
+		 *  output is held back until finish(). */
+		BibFile(Scanner sc, String bibFile, boolean ahead) {
+			name = bibFile;
+			location = sc.location();
+			if (ahead) held.set(console);
+			try {
+				parser = new BibTeXParser();
+				path = expand(bibFile);
+			} catch (TokenMgrException e) {
+				return;
+			} catch (ParseException e) {
+				return;
+			} finally {
+				if (ahead) held.remove();
+			}
+			if (ahead) parse = pool().submit(this);
 		}
-		try {
-			Reader r = new FileReader(expand(bibFile));
-			BibTeXDatabase db = parser.parseFully(r);
-			r.close();
-			dbs.put(bibFile, db);
+
+		/** The database, from the snapshot of the file and whatever has
+		 *  changed in it since, or null if the file could not be read. */
+		@Override public BibTeXDatabase call() {
+			BibSnapshot snapshot;
+			try {
+				snapshot = new BibSnapshot(path);
+			} catch (IOException e) {
+				return parse(); // which reports the problem
+			}
+			BibTeXDatabase db = snapshot.load();
+			if (db == null) db = parse();
+			if (db != null && !snapshot.current()) snapshot.save(db);
+			return db;
+		}
+
+		BibTeXDatabase parse() {
+			try {
+				if (threads > 1 && new File(path).length() >= 2 * BibChunks.MIN_CHUNK) {
+					CharSequence text = BibChunks.map(path);
+					BibTeXDatabase db = BibChunks.parse(text, threads, pool());
+					return db != null ? db
+							: parser.parseFully(new StringReader(text.toString()));
+				}
+				Reader r = new FileReader(path);
+				BibTeXDatabase db = parser.parseFully(r);
+				r.close();
+				return db;
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		/** Add the database to dbs and entry_files, and report on it. */
+		Optional<BibTeXDatabase> finish() {
+			System.out.write(console[0].toByteArray(), 0, console[0].size());
+			System.err.write(console[1].toByteArray(), 0, console[1].size());
+			if (parser == null) {
+				System.err.println("Failed reading bib file at " + location);
+				return empty();
+			}
+			BibTeXDatabase db = parse != null ? parse.join() : call();
+			if (db == null) {
+				System.err.println("IO exception parsing bib file at " + location);
+				return empty();
+			}
+			dbs.put(name, db);
 			out.println("Found " + db.getObjects().size() +
-					" records in BibTeX file " + bibFile);
+					" records in BibTeX file " + name);
+			indexEntries(name, db);
 			return Optional.of(db);
-		} catch (IOException e) {
-			System.err.println("IO exception parsing bib file at " + sc.location());
-			return empty();
 		}
 	}
 
@@ -264,20 +465,52 @@ public class Main {
 
 		switch (attribute) {
 		case "bibfile":
+			finishGenerations();
 			String bibFile = Parsing.parseValue(sc);
-			readBibFile(sc, bibFile);
+			if (threads > 1) startBibFile(sc, bibFile);
+			else readBibFile(sc, bibFile);
 			break;
 		case "pubs":
+			finishBibFiles();
+			finishGenerations();
             readPublications(sc);
             System.out.println("Found " + pubs.size()
                                 + " publications in script.");
             break;
 		case "generate":
+			finishBibFiles();
 			generated = true;
             if (pubs.isEmpty()) autoImportAllPubs();
-			generate(sc);
+			if (threads <= 1 || !startGeneration(sc)) {
+				finishGenerations();
+				generate(sc);
+			}
+			break;
+		case "threads":
+			finishBibFiles();
+			finishGenerations();
+			String n = Parsing.parseValue(sc);
+			try {
+				threads = Integer.parseInt(n.trim());
+				if (threads <= 0)
+					threads = Runtime.getRuntime().availableProcessors();
+			} catch (NumberFormatException e) {
+				out.println("Expected a number of threads at " + sc.location() + ": " + n);
+			}
+			break;
+		case "pubcache":
+			finishBibFiles();
+			finishGenerations();
+			String size = Parsing.parseValue(sc);
+			try {
+				pub_bindings.resize(Integer.parseInt(size.trim()));
+			} catch (NumberFormatException e) {
+				out.println("Expected a number of publications at " + sc.location() + ": " + size);
+			}
 			break;
 		case "include":
+			finishBibFiles();
+			finishGenerations();
 			Reader r = null;
 			File inpf = new File(inputFile.get());
 			String fname = expand(Parsing.parseValue(sc));
@@ -292,25 +525,54 @@ public class Main {
 			}
 			break;
 		default:
-			t2h.addMacro(attribute, Parsing.parseValue(sc));
+			String value = Parsing.parseValue(sc);
+			t2h.addMacro(attribute, value);
+			if (!generations.isEmpty())
+				generations.get(generations.size() - 1).later.add(new String[] { attribute, value });
 		}
 	}
 
 
 
 	protected void generateHeader(PrintWriter w) {
-		w.print(expand("\\header"));
+		expand("\\header", w);
 	}
 
 	protected void generateFooter(PrintWriter w) {
-		w.print(expand("\\footer"));
+		expand("\\footer", w);
+	}
+
+	/** The converter for the current thread: the fork belonging to the
+	 *  task it is doing, if any, and otherwise t2h. */
+	protected Tex2HTML converter() {
+		Task t = task.get();
+		return t == null ? t2h : t.t2h;
+	}
+
+	/** A writer for the output file fname. A generate block done ahead of
+	 *  its turn writes to memory, and the file is written on commit. */
+	protected PrintWriter openOutput(String fname) throws FileNotFoundException {
+		Task t = task.get();
+		if (t instanceof Generation) return ((Generation) t).output(fname);
+		return new PrintWriter(fname);
+	}
+
+	/** Expand s directly into w, without building the result as a string. */
+	protected void expand(String s, Appendable w) {
+		try {
+			converter().convert(s, w);
+		} catch (T2HErr e) {
+			System.err.println("HTML conversion failed on " + s + " : " + e.getMessage());
+		} catch (IOException e) {
+			System.err.println("IO exception writing expansion of " + s + ": " + e.getMessage());
+		}
 	}
 
     /** s can be null. */
 	protected String expand(String s, boolean b) {
 		if (s == null) return "";
 		try {
-			return t2h.convert(s, b);
+			return converter().convert(s, b);
 		} catch (T2HErr e) {
             System.err.println("HTML conversion failed on " + s + " : " + e.getMessage());
             return "";
@@ -323,26 +585,20 @@ public class Main {
 		return expand(s, false);
 	}
 	
+	/** The name a with the first name first. A name written "Last, First"
+	 *  or "Last, First, Jr" is split at ", " exactly, and anything after
+	 *  a third part is dropped, as it always has been. */
 	protected String normalizeAuthor(String a) {
-		if (a.contains(", ")) {
-			StringBuilder b = new StringBuilder();
-			Scanner s = new Scanner(new StringReader(a), a);
-			Recognizer r = Regex.constant(", ");
-			String surname = Regex.parseToPattern(s, r);
-			try { Regex.scanPattern(s, r); } catch (UnexpectedInput e) {}
-			String firstname = Regex.parseToPattern(s, r);
-			b.append(firstname);
-			b.append(" ");
-			b.append(surname);
-			if (s.hasNext()) {
-				try { Regex.scanPattern(s, r); } catch (UnexpectedInput e) {}
-				String jr = Regex.parseToPattern(s, r);
-				b.append(", "); b.append(jr);
-			}
-			try { s.close(); } catch (IOException e) {}
-			return b.toString();
+		int i = a.indexOf(", ");
+		if (i < 0) return a;
+		int j = a.indexOf(", ", i + 2);
+		StringBuilder b = new StringBuilder(a.length());
+		b.append(a, i + 2, j < 0 ? a.length() : j).append(' ').append(a, 0, i);
+		if (j >= 0) {
+			int k = a.indexOf(", ", j + 2);
+			b.append(", ").append(a, j + 2, k < 0 ? a.length() : k);
 		}
-		return a;
+		return b.toString();
 	}
 
 	protected String formattedAuthors(Publication p) {
@@ -413,13 +669,22 @@ public class Main {
 		}
 	}
 	
+	/** The index of pubs, made again if publications were added or their
+	 *  attributes changed since it was last made. */
+	private PubIndex pubIndex() {
+		int stamp = pub_updates + pub_imports;
+		PubIndex index = pub_index;
+		if (index == null || index.stamp != stamp)
+			pub_index = index = new PubIndex(pubs.values(), stamp);
+		return index;
+	}
+
 	static int compareDates(Publication p1, Publication p2) {
-		int y1 = p1.year(), y2 = p2.year();
-		if (y1 == y2) return p1.month() - p2.month();
-		return y1 - y2;
+		return Integer.compare(p1.date(), p2.date());
 	}
 
 	protected void generate(Scanner sc) {
+		Tex2HTML t2h = converter();
 		t2h.push();
 
 		String fname = null;
@@ -444,7 +709,7 @@ public class Main {
 						return;
 					}
 					try {
-						w = new PrintWriter(fname);
+						w = openOutput(fname);
 					} catch (FileNotFoundException e) {
 						System.err.println("Cannot write to " + fname);
 						return;
@@ -487,12 +752,142 @@ public class Main {
 		}
 	}
 
+	/** Start generating the block at sc ahead of its turn, on a fork of
+	 *  t2h. Returns false, leaving sc where it was, if the block cannot
+	 *  be generated that way. */
+	private boolean startGeneration(Scanner sc) {
+		routeConsole();
+		String text = scanGenerate(sc);
+		if (text == null) return false;
+		Generation g = new Generation(t2h.fork(), text, inputFile.get());
+		generations.add(g);
+		g.future = pool().submit(g);
+		return true;
+	}
+
+	/** Write out the generate blocks started ahead of their turn, in
+	 *  order. A block is written out as it was generated if that is still
+	 *  what serial generation would produce; otherwise it is generated
+	 *  again serially, from the macros in effect where it appeared. Once a
+	 *  block generated serially changes a publication or leaves braces
+	 *  unbalanced, every block after it is generated serially as well,
+	 *  from the state it left, and that state becomes t2h. */
+	private void finishGenerations() {
+		Tex2HTML state = null; // once serial generation has diverged
+		for (Generation g : generations) {
+			g.future.join();
+			if (state != null || !g.pure || !g.commit()) {
+				Tex2HTML s = state != null ? state : g.start;
+				int depth = s.depth(), updates = pub_updates;
+				Tex2HTML saved = t2h;
+				t2h = s;
+				try {
+					generate(new Scanner(new StringReader(g.text), g.source));
+				} finally {
+					t2h = saved;
+				}
+				if (s.depth() != depth || pub_updates != updates)
+					state = s;
+			}
+			if (state != null)
+				for (String[] d : g.later)
+					state.addMacro(d[0], d[1]);
+		}
+		generations.clear();
+		made_ahead.clear();
+		if (state != null) t2h = state;
+	}
+
+	/** Scan over the generate block at sc, with its console output held
+	 *  back. Returns its text, or null, leaving sc where it was, unless
+	 *  generate() would parse all of it and print nothing while doing so. */
+	private String scanGenerate(Scanner sc) {
+		ByteArrayOutputStream[] console = { new ByteArrayOutputStream(),
+				new ByteArrayOutputStream() };
+		held.set(console);
+		sc.mark();
+		try {
+			if (skipGenerate(sc) && console[0].size() == 0 && console[1].size() == 0) {
+				String text = sc.getToken();
+				sc.accept();
+				return text;
+			}
+		} catch (ParseError | Error e) {
+			// generated serially, which reports it
+		} finally {
+			held.remove();
+		}
+		sc.abort();
+		return null;
+	}
+
+	/** Parse a generate block the way generate() does. Returns false if
+	 *  generate() would stop partway through it. */
+	private boolean skipGenerate(Scanner sc) throws ParseError {
+		if (!isMultilineValue(sc)) return false;
+		boolean output = false;
+		while (!rhsClosed(sc, true)) {
+			switch (parseAttribute(sc)) {
+			case "output":
+				String fname = parseValue(sc);
+				if (output || !writable(fname)) return false;
+				output = true;
+				break;
+			case "section":
+				if (!output) return false;
+				skipSection(sc);
+				break;
+			default:
+				parseValue(sc);
+			}
+		}
+		return true;
+	}
+
+	/** Whether the file fname could be opened for writing, found out
+	 *  without creating or touching it. */
+	private static boolean writable(String fname) {
+		File f = new File(fname).getAbsoluteFile();
+		if (f.exists()) return f.isFile() && f.canWrite();
+		File dir = f.getParentFile();
+		return dir != null && dir.isDirectory() && dir.canWrite();
+	}
+
+	/** Parse a section the way generateSection() does. */
+	private void skipSection(Scanner sc) throws ParseError {
+		boolean multiline = isMultilineValue(sc);
+		while (!rhsClosed(sc, multiline)) {
+			switch (parseAttribute(sc)) {
+			case "select":
+				boolean ml_select = isMultilineValue(sc);
+				while (!rhsClosed(sc, ml_select)) {
+					parseAttribute(sc);
+					parseValue(sc);
+				}
+				break;
+			case "sort":
+				try {
+					sc.whitespace(); sc.consume(":"); sc.whitespace();
+				} catch (UnexpectedInput uinp) {
+					throw new ParseError("Expected sort key at " + sc.location());
+				}
+				parseOrder(sc);
+				break;
+			default:
+				parseValue(sc);
+			}
+		}
+	}
+
 	protected void generateSection(PrintWriter w, Scanner sc) throws ParseError {
-		Collection<Publication> selected = new HashSet<>();
+		PubIndex index = pubIndex();
+		BitSet selected = new BitSet();
+		Tex2HTML t2h = converter();
 		t2h.push();
 		boolean any_select = false;
 		boolean multiline = isMultilineValue(sc);
         Comparator<Publication> order = byYear;
+		int limit = -1, offset = 0;
 		
 		try {
 			while (!rhsClosed(sc, multiline)) {
@@ -503,18 +898,25 @@ public class Main {
 					any_select = true;
 					
 					boolean ml_select = isMultilineValue(sc);
+					// intersect the indexed selectors, then test the rest
+					BitSet matched = null;
 					List<Filter> filters = new ArrayList<Filter>();
 					while (!rhsClosed(sc, ml_select)) {
 						String selector = Parsing.parseAttribute(sc);
 						String value = Parsing.parseValue(sc);
-						filters.add(createFilter(selector, value));
+						BitSet b = index.find(selector, value);
+						if (b == null) filters.add(createFilter(selector, value));
+						else if (matched == null) matched = (BitSet) b.clone();
+						else matched.and(b);
 					}
+					if (matched == null) matched = (BitSet) index.all().clone();
 
-					nextpub: for (Publication p : pubs.values()) {
+					nextpub: for (int i = matched.nextSetBit(0); i >= 0;
+							i = matched.nextSetBit(i + 1)) {
 						for (Filter f : filters) {
-							if (!f.select(p)) continue nextpub;
+							if (!f.select(index.get(i))) continue nextpub;
 						}
-						selected.add(p);
+						selected.set(i);
 					}
 					break;
                 case "sort":
@@ -525,40 +927,62 @@ public class Main {
                     }
                     order = parseOrder(sc);
                     break;
+				case "limit":
+				case "top":
+					limit = parseCount(sc);
+					break;
+				case "offset":
+					offset = parseCount(sc);
+					break;
 				default:
 					t2h.addMacro(attribute, Parsing.parseValue(sc));
 					break;
 				}
 			}
 			if (!any_select)
-				selected = pubs.values();
+				selected = index.all();
 			
-			Publication[] pa = selected.toArray(new Publication[0]);
-			Arrays.sort(pa, order);
-
-			w.println(expand("\\intro"));
-			w.println(expand("\\openpaperlist"));
-			for (Publication p : pa)
-				generatePub(p, w);
-			w.println(expand("\\closepaperlist"));
+			Publication[] pa = index.sorted(selected, order, offset, limit);
+
+			expand("\\intro", w);
+			w.println();
+			expand("\\openpaperlist", w);
+			w.println();
+			generatePubs(pa, w);
+			expand("\\closepaperlist", w);
+			w.println();
 			w.flush();
 		} finally {
 			t2h.pop();
 		}
 	}
 
-	static final protected Comparator<Publication> byYear = (o1, o2) ->
-			 (o2.year() - o1.year()) * 12 + (o2.month() - o1.month());
+	/** A number of publications, given as the value of a section option. */
+	private static int parseCount(Scanner sc) throws ParseError {
+		String where = sc.location();
+		String v = Parsing.parseValue(sc).trim();
+		try {
+			int n = Integer.parseInt(v);
+			if (n >= 0) return n;
+		} catch (NumberFormatException e) {
+		}
+		throw new ParseError("Expected a number of publications at " + where);
+	}
+
+	/** Newest first. A month of 0 counts as December of the year before. */
+	static final protected Comparator<Publication> byYear = new Order<>(
+			p -> p.year() * 12 + p.month(), Comparator.reverseOrder());
 
-	static final protected Comparator<Publication> byAuthor = (o1, o2) ->
-            o1.author().compareTo(o2.author());
+	/** By the author field as written; publications without one first. */
+	static final protected Comparator<Publication> byAuthor = new Order<>(
+			Publication::author, Comparator.nullsFirst(Comparator.naturalOrder()));
 
     static final protected Comparator<Publication> reverse(Comparator<Publication> cmp) {
-        return (o1, o2) -> cmp.compare(o2, o1);
+        return cmp.reversed();
     }
 
-	protected Comparator<Publication> byTitle = (o1, o2) ->
-            expand(o1.title()).compareTo(expand(o2.title()));
+	protected Comparator<Publication> byTitle = new Order<>(
+			p -> expand(p.title()), Comparator.naturalOrder());
 
     Comparator<Publication> parseOrder(Scanner sc) throws ParseError {
       sc.whitespace();
@@ -699,68 +1123,336 @@ public class Main {
 	// string form. The namespace is cached for later use, and regenerated if
 	// the underlying publication changes. Note that some attributes come
 	// "directly" from the publication, but these are numeric attributes.
-	class PubContext implements Namespace {
+	/** The namespace of a publication. Bindings that take converting
+	 *  text to HTML are deferred: each is worked out when first looked
+	 *  up, with the converter as it was when the namespace was made.
+	 *  Once registered, the bindings are kept in pub_bindings, and made
+	 *  again from the publication if they have been dropped from it. */
+	class PubContext implements Namespace, Publication.Observer {
 		Publication pub;
-		Namespace context = new Context();
+		/** The bindings, until this is registered, or if the publication
+		 *  already had a namespace, its bindings when this was made. */
+		private Bindings bindings;
+		/** Where the task that made it comes in serial order, if a task
+		 *  made it. */
+		int[] position;
+		/** Whether it stands for a namespace that another task made. */
+		boolean adopted = false;
+		/** The converter when this was made, or last refreshed. */
+		private volatile Tex2HTML at;
 		
 		public PubContext(Publication p) {
 			pub = p;
-			if (pub_defns.containsKey(p)) {
-				assert pub_defns.get(p) != null;
-				context = pub_defns.get(p);
+			PubContext known = knownContext(p);
+			if (known != null) {
+				bindings = known.bindings();
+				bindings.report("", bindings.made);
 				return;
 			}
-			init(p);
-			pub_defns.put(p, context);
-			pub.registerObserver(pub2 -> refresh());
+			Task t = task.get();
+			if (t != null) {
+				t.make(this);
+			} else {
+				init(p);
+				register();
+			}
+			Bindings b = bindings();
+			b.report("", b.made);
+		}
+
+		/** Record this as the namespace of its publication. */
+		void register() {
+			pub_defns.put(pub, this);
+			pub_bindings.put(this, bindings);
+			bindings = null;
+			pub.registerObserver(this);
+		}
+
+		/** Take on the bindings of m, which a task coming before the
+		 *  current one made for the same publication, unless the
+		 *  publication has changed since. Returns whether it did. */
+		boolean adopt(PubContext m) {
+			Bindings b = m.bindings;
+			if (b == null || !pub.unchangedSince(b.p)) return false;
+			at = b.at;
+			bindings = b;
+			position = m.position;
+			adopted = true;
+			return true;
+		}
+
+		@Override public void update(Publication p) {
+			refresh();
 		}
 		
+		/** Drop the bindings, to be made again from the publication when
+		 *  next looked up, with the macros as they are now. Any number of
+		 *  changes before then cost one remaking. */
 		public void refresh() {
-			init(pub);
-			pub_defns.put(pub, context);
+			at = snapshot();
+			pub_bindings.invalidate(this);
+			reported.remove(pub);
 		}
 		
 		void init(Publication p) {
-			String where_published = wherePublished(p);
-			String authors = formattedAuthors(p);
-			
-			Context ctxt = new Context();
-			if (p.title() != null) ctxt.add("title", expand(p.title(), true));
-			else ctxt.add("title", "<em>No title</em>");
-			ctxt.add("wherepublished", where_published);
-			ctxt.add("authors", authors);
-			if (p.author() != null) ctxt.add("bibtexAuthors", p.author());
-			ctxt.add("pubtype", p.pubType());
-			if (p.url() != null) ctxt.add("paperurl", p.url());
-			ctxt.add("venue", p.venue());
-			ctxt.add("key", p.key);
-			ctxt.add("year", p.bibtexYear());
-			if (p.institution() != null) ctxt.add("institution", p.institution());
-			if (p.volume() != null) ctxt.add("volume", p.volume());
-			if (p.number() != null) ctxt.add("number", p.number());
-			
-			if (p.bibtexMonth() != null)
-				ctxt.add("month", p.bibtexMonth());
-			if (p.pages() != null)
-				ctxt.add("pages", p.pages());
-			for (String name : p.defns.keySet()) {
-				ctxt.add(name, p.defns.get(name));
+			at = snapshot();
+			pub_contexts.incrementAndGet();
+			bindings = new Bindings();
+		}
+
+		/** The bindings of the namespace, made again if need be. */
+		private Bindings bindings() {
+			Bindings b = bindings;
+			if (b != null) return b;
+			b = pub_bindings.get(this);
+			if (b != null) return b;
+			// a task's work may be thrown away, so it keeps them to
+			// itself until committed
+			Task t = task.get();
+			if (t != null) return t.rebuilt(this);
+			b = new Bindings();
+			pub_bindings.put(this, b);
+			return b;
+		}
+
+		/** Whether b is still what the bindings of this would be made
+		 *  from: neither the publication nor the macros have changed since
+		 *  b was made. */
+		boolean current(Bindings b) {
+			return b.at == at && pub.unchangedSince(b.p);
+		}
+
+		/** Whether c has the same bindings as this, working out the
+		 *  deferred ones to compare them. */
+		boolean sameAs(PubContext c) {
+			Bindings own = bindings(), other = c.bindings();
+			if (own == other) return true;
+			List<Object> attrs = own.attrs, c_attrs = other.attrs;
+			if (attrs.size() != c_attrs.size()) return false;
+			for (int i = 0; i < attrs.size(); i++) {
+				Object a = attrs.get(i), b = c_attrs.get(i);
+				if (a instanceof Bindings.Deferred) a = ((Bindings.Deferred) a).value();
+				if (b instanceof Bindings.Deferred) b = ((Bindings.Deferred) b).value();
+				if (!Objects.equals(a, b)) return false;
 			}
-			context = ctxt;	
+			return true;
 		}
 
 		@Override public String lookup(String name) throws LookupFailure {
-			return context.lookup(name);
+			String s = find(name);
+			if (s == null) throw Context.lookupFailed;
+			return s;
+		}
+
+		@Override public String find(String name) {
+			Bindings b = bindings();
+			b.report("", b.made);
+			return b.find(name);
+		}
+
+		/** What the names of the namespace are bound to, worked out from
+		 *  the publication as it is now. */
+		final class Bindings {
+			/** The converter whose macros the deferred bindings are worked
+			 *  out with. */
+			private final Tex2HTML at = PubContext.this.at;
+			/** The publication as it was when this was made. */
+			private final Publication p = pub.frozen();
+			final Context context = new Context();
+			/** The deferred bindings, by name. */
+			final Map<String, Deferred> deferred = new HashMap<>();
+			/** The names and values that this was made from, in order,
+			 *  with the deferred bindings standing for their values. */
+			final List<Object> attrs = new ArrayList<>();
+			/** What making this printed. */
+			final Held made = new Held();
+
+			Bindings() {
+				capture(made, () -> {
+					bind();
+					return null;
+				});
+			}
+
+			private void bind() {
+				defer("title", q -> q.title() != null ? expand(q.title(), true)
+						: "<em>No title</em>");
+				defer("wherepublished", q -> wherePublished(q));
+				defer("authors", q -> formattedAuthors(q));
+				if (p.author() != null) add("bibtexAuthors", p.author());
+				add("pubtype", p.pubType());
+				if (p.url() != null) add("paperurl", p.url());
+				add("venue", p.venue());
+				add("key", p.key);
+				add("year", p.bibtexYear());
+				if (p.institution() != null) add("institution", p.institution());
+				if (p.volume() != null) add("volume", p.volume());
+				if (p.number() != null) add("number", p.number());
+				
+				if (p.bibtexMonth() != null)
+					add("month", p.bibtexMonth());
+				if (p.pages() != null)
+					add("pages", p.pages());
+				for (String name : p.defns.keySet()) {
+					add(name, p.defns.get(name));
+				}
+			}
+
+			private void add(String name, String value) {
+				context.add(name, value);
+				attrs.add(name);
+				attrs.add(value);
+			}
+
+			/** Bind name to what how works out from the publication, when
+			 *  it is looked up, unless the publication gives it a value. */
+			private void defer(String name, Function<Publication, String> how) {
+				if (p.defns.containsKey(name)) return;
+				Deferred d = new Deferred(name, how);
+				deferred.put(name, d);
+				attrs.add(name);
+				attrs.add(d);
+			}
+
+			String find(String name) {
+				String s = context.find(name);
+				if (s != null) return s;
+				Deferred d = deferred.get(name);
+				return d == null ? null : d.use();
+			}
+
+			/** Report what working out part of this printed: "" for making
+			 *  it, or the name of a deferred binding. Not once it is out of
+			 *  date, since it was reported while it was not. */
+			void report(String part, Held output) {
+				if (pub.unchangedSince(p)) Main.this.report(pub, part, output);
+			}
+
+			/** A binding that is worked out when first looked up. */
+			final class Deferred {
+				final String name;
+				private final Function<Publication, String> how;
+				private volatile String value;
+				/** What working out value printed. */
+				private Held output;
+
+				Deferred(String n, Function<Publication, String> h) {
+					name = n;
+					how = h;
+				}
+
+				/** The value, reporting what working it out printed. */
+				String use() {
+					String v = value;
+					if (v == null) return work(true);
+					report(name, output);
+					return v;
+				}
+
+				/** The value, worked out if need be without reporting. */
+				String value() {
+					String v = value;
+					return v != null ? v : work(false);
+				}
+
+				/** Work out the value with the macros of the converter this
+				 *  was made with, by the current thread's converter, so that
+				 *  threads can do so at once and reuse the expansions they
+				 *  have cached. The value is only kept if the current task,
+				 *  if any, made these bindings: it may depend on namespaces
+				 *  the task made, which may be thrown away. */
+				private String work(boolean use) {
+					Held out = new Held();
+					String v = capture(out, () -> converter().with(at, () -> how.apply(p)));
+					deferred_counts.computeIfAbsent(name, n -> new AtomicInteger())
+						.incrementAndGet();
+					Task t = task.get();
+					if (t == null || t.created.get(pub) == PubContext.this
+							|| t.rebuilt.get(PubContext.this) == Bindings.this) {
+						output = out;
+						value = v;
+					}
+					if (use) report(name, out);
+					return v;
+				}
+			}
 		}
 	}
 
+	/** The bindings of the namespaces used most recently, up to a limit.
+	 *  Those of the others are made again when they are next used. What
+	 *  making them prints has been reported already, so it is not printed
+	 *  again. */
+	private static final class BindingsCache {
+		private final LinkedHashMap<PubContext, PubContext.Bindings> map =
+				new LinkedHashMap<>(16, 0.75f, true);
+		private int limit = 8192;
+		private int hits, misses, evictions, invalidations;
+
+		synchronized PubContext.Bindings get(PubContext c) {
+			PubContext.Bindings b = map.get(c);
+			if (b == null) misses++;
+			else hits++;
+			return b;
+		}
+
+		synchronized void put(PubContext c, PubContext.Bindings b) {
+			map.put(c, b);
+			trim();
+		}
+
+		/** Keep b as the bindings of c, unless c has some already. */
+		synchronized void putIfAbsent(PubContext c, PubContext.Bindings b) {
+			if (map.putIfAbsent(c, b) == null) trim();
+		}
+
+		/** Drop the bindings of c, which are out of date. */
+		synchronized void invalidate(PubContext c) {
+			if (map.remove(c) != null) invalidations++;
+		}
+
+		/** Keep the bindings of at most n namespaces from now on. */
+		synchronized void resize(int n) {
+			limit = Math.max(n, 1);
+			trim();
+		}
+
+		private void trim() {
+			Iterator<PubContext.Bindings> i = map.values().iterator();
+			while (map.size() > limit) {
+				i.next();
+				i.remove();
+				evictions++;
+			}
+		}
+
+		synchronized String stats() {
+			return hits + " hits, " + misses + " misses, " + evictions
+					+ " evicted, " + invalidations + " invalidated, " + map.size()
+					+ " of " + limit + " kept";
+		}
+	}
+
+	/** A converter with the macros of the current one, to work out the
+	 *  deferred bindings of a namespace with. It is only forked, never
+	 *  changed, so it is shared until the macros change. */
+	private Tex2HTML snapshot() {
+		Tex2HTML c = converter(), s = snapshot;
+		if (s == null || !s.sameAs(c)) snapshot = s = c.fork();
+		return s;
+	}
+
 	protected void generatePub(Publication p, PrintWriter w) {
+		Tex2HTML t2h = converter();
         boolean pushed = false;
+		String problem = p.yearProblem();
+		if (problem != null) System.err.println(problem);
 		try {
             PubContext ctxt = new PubContext(p);
             t2h.push(ctxt);
             pushed = true;
-			w.println(expand("\\pubformat"));
+			expand("\\pubformat", w);
+			w.println();
 		}
         catch (RuntimeException exc) {
             out.println("Generation of public " + p + " failed:\n" + exc);
@@ -768,4 +1460,390 @@ public class Main {
 			if (pushed) t2h.pop();
 		}
 	}
+
+	/** Generate the publications in pa, in order. With more than one
+	 *  thread, all of them are first rendered at once, each on its own fork
+	 *  of the converter. A rendering is then written out in its turn if it
+	 *  is still what serial generation would produce; otherwise that
+	 *  publication is generated serially. Once a serially generated one
+	 *  changes a publication or leaves braces unbalanced, the rest are
+	 *  generated serially too. */
+	protected void generatePubs(Publication[] pa, PrintWriter w) {
+		List<Rendering> renderings = null;
+		if (threads > 1 && pa.length > 1) {
+			routeConsole();
+			renderings = new ArrayList<>();
+			for (int i = 0; i < pa.length; i++)
+				renderings.add(new Rendering(pa[i], w, i));
+			pool().invokeAll(renderings);
+		}
+		Tex2HTML t2h = converter();
+		for (int i = 0; i < pa.length; i++) {
+			Rendering r = renderings == null ? null : renderings.get(i);
+			if (r == null || !r.pure || !r.commit()) {
+				int depth = t2h.depth(), updates = pub_updates;
+				generatePub(pa[i], w);
+				if (t2h.depth() != depth || pub_updates != updates)
+					renderings = null;
+			}
+		}
+		if (task.get() == null && generations.isEmpty()) made_ahead.clear();
+	}
+
+	/** The namespace already made for p, as seen by the current task. */
+	private PubContext knownContext(Publication p) {
+		Task t = task.get();
+		return t == null ? pub_defns.get(p) : t.knownContext(p);
+	}
+
+	private synchronized ForkJoinPool pool() {
+		if (pool == null || pool.getParallelism() != threads)
+			pool = new ForkJoinPool(threads);
+		return pool;
+	}
+
+	/** Work done ahead of its turn on a fork of the converter, with its
+	 *  console output held back, and with the namespaces it makes for
+	 *  publications kept to itself until it is committed. The work is pure
+	 *  if it could not have changed how later work is done: it finished
+	 *  without an exception, used no \setpubinfo, and left no unbalanced
+	 *  braces behind. */
+	private abstract class Task extends PubInfo implements Callable<Task> {
+		final Task parent = task.get(); // whose work this is part of
+		final Tex2HTML t2h;
+		boolean pure = false;
+		boolean updated = false;
+		final Map<Publication, PubContext> created = new LinkedHashMap<>();
+		/** Where the work comes in serial order: the position of the task
+		 *  it is part of, then its place among that task's. */
+		final int[] position;
+		/** Bindings made again by this task for namespaces made before it,
+		 *  whose own had been dropped from pub_bindings. */
+		final Map<PubContext, PubContext.Bindings> rebuilt = new HashMap<>();
+		/** The console output so far. */
+		final Held console = new Held();
+		/** The parts of namespaces reported in console, by publication. */
+		final Map<Publication, Set<String>> reports = new HashMap<>();
+
+		/** A task that is the index'th of its parent's, or the next one
+		 *  started if it has none. */
+		Task(Tex2HTML from, int index) {
+			super(Main.this.pubs, p -> new PubContext(p));
+			t2h = from.fork(this);
+			if (parent == null) {
+				position = new int[] { root_tasks++ };
+			} else {
+				position = Arrays.copyOf(parent.position, parent.position.length + 1);
+				position[parent.position.length] = index;
+			}
+		}
+
+		abstract void run();
+
+		/** Write out the results of the work. */
+		abstract void write();
+
+		@Override public Task call() {
+			Task t = task.get();
+			ByteArrayOutputStream[] h = held.get();
+			task.set(this);
+			console.hold();
+			try {
+				int depth = t2h.depth();
+				run();
+				pure = !updated && t2h.depth() == depth;
+			} catch (Throwable e) {
+				// done again serially, which reports the failure
+			} finally {
+				task.set(t);
+				held.set(h);
+			}
+			return this;
+		}
+
+		/** Initialize c, which is for a publication with no namespace yet.
+		 *  If a task coming before this one has made one, c stands for
+		 *  that one instead, since serial generation would have used it. */
+		void make(PubContext c) {
+			PubContext m = made_ahead.get(c.pub);
+			if (m != null && Arrays.compare(m.position, position) < 0 && c.adopt(m)) {
+				created.put(c.pub, c);
+				return;
+			}
+			c.position = position;
+			c.init(c.pub);
+			created.put(c.pub, c);
+			made_ahead.merge(c.pub, c, (a, b) ->
+					Arrays.compare(a.position, b.position) <= 0 ? a : b);
+		}
+
+		/** Keep what working out part of the namespace of p printed in the
+		 *  console output, to be reported on commit, unless it is there
+		 *  already. */
+		void report(Publication p, String part, Held output) {
+			if (reports.computeIfAbsent(p, q -> new HashSet<>()).add(part))
+				console.add(new Report(p, part, output));
+		}
+
+		/** The bindings of c, which was made before this task, made again
+		 *  unless this task or one it is part of has done so already. */
+		PubContext.Bindings rebuilt(PubContext c) {
+			for (Task t = this; t != null; t = t.parent) {
+				PubContext.Bindings b = t.rebuilt.get(c);
+				if (b != null) return b;
+			}
+			PubContext.Bindings b = c.new Bindings();
+			rebuilt.put(c, b);
+			return b;
+		}
+
+		@Override public void put(String key, String field, String value) throws LookupFailure {
+			updated = true;
+			throw Context.lookupFailed;
+		}
+
+		/** Write out the work as if it had just been done serially, unless
+		 *  a namespace it made for a publication is not the one that has
+		 *  been made since by the work before it, or it took on one from
+		 *  other work that has not turned out to be the one made before it.
+		 *  Returns whether it was written out. */
+		boolean commit() {
+			for (PubContext c : created.values()) {
+				PubContext known = parent == null ? pub_defns.get(c.pub)
+						: parent.knownContext(c.pub);
+				if (known == null ? c.adopted && parent == null : !known.sameAs(c))
+					return false;
+			}
+			for (PubContext c : created.values()) {
+				if (parent == null ? pub_defns.containsKey(c.pub)
+						: parent.knownContext(c.pub) != null)
+					continue;
+				if (parent == null) c.register();
+				else parent.created.put(c.pub, c);
+			}
+			for (Map.Entry<PubContext, PubContext.Bindings> e : rebuilt.entrySet()) {
+				PubContext c = e.getKey();
+				PubContext.Bindings b = e.getValue();
+				if (parent != null) parent.rebuilt.putIfAbsent(c, b);
+				else if (c.current(b)) pub_bindings.putIfAbsent(c, b);
+			}
+			write();
+			if (parent == null) {
+				console.print();
+			} else {
+				parent.console.pieces.addAll(console.pieces);
+				parent.console.hold();
+			}
+			return true;
+		}
+
+		/** The namespace already made for p, as seen by this task. */
+		PubContext knownContext(Publication p) {
+			for (Task t = this; t != null; t = t.parent) {
+				PubContext c = t.created.get(p);
+				if (c != null) return c;
+			}
+			return pub_defns.get(p);
+		}
+	}
+
+	/** Console output held back, in pieces: stdout and stderr, or a
+	 *  Report, which is reported in its turn when this is printed. */
+	private class Held {
+		final List<Object> pieces = new ArrayList<>();
+
+		/** Hold the console output of the current thread in a new piece. */
+		void hold() {
+			ByteArrayOutputStream[] h = { new ByteArrayOutputStream(),
+					new ByteArrayOutputStream() };
+			pieces.add(h);
+			held.set(h);
+		}
+
+		/** Add r, and hold what comes after it in a new piece. */
+		void add(Report r) {
+			pieces.add(r);
+			hold();
+		}
+
+		boolean isEmpty() {
+			for (Object o : pieces) {
+				if (o instanceof Report) return false;
+				ByteArrayOutputStream[] h = (ByteArrayOutputStream[]) o;
+				if (h[0].size() > 0 || h[1].size() > 0) return false;
+			}
+			return true;
+		}
+
+		/** Print it as the current thread would now. */
+		void print() {
+			for (Object o : pieces) {
+				if (o instanceof Report) {
+					Report r = (Report) o;
+					report(r.pub, r.part, r.output);
+				} else {
+					ByteArrayOutputStream[] h = (ByteArrayOutputStream[]) o;
+					System.out.write(h[0].toByteArray(), 0, h[0].size());
+					System.err.write(h[1].toByteArray(), 0, h[1].size());
+				}
+			}
+		}
+	}
+
+	/** What working out part of the namespace of a publication printed. */
+	private static final class Report {
+		final Publication pub;
+		final String part;
+		final Held output;
+
+		Report(Publication p, String part, Held output) {
+			pub = p;
+			this.part = part;
+			this.output = output;
+		}
+	}
+
+	/** A publication rendered ahead of its turn. */
+	private class Rendering extends Task {
+		final Publication pub;
+		final PrintWriter w;
+		final StringWriter html = new StringWriter();
+
+		Rendering(Publication p, PrintWriter w, int index) {
+			super(converter(), index);
+			pub = p;
+			this.w = w;
+		}
+
+		@Override void run() {
+			PrintWriter hw = new PrintWriter(html);
+			generatePub(pub, hw);
+			hw.flush();
+		}
+
+		@Override void write() {
+			w.write(html.toString());
+		}
+	}
+
+	/** A generate block generated ahead of its turn, with its output
+	 *  files written to memory. */
+	private class Generation extends Task {
+		final Tex2HTML start; // t2h where the block appeared
+		final String text, source;
+		/** Macros defined in the script after the block, before the next. */
+		final List<String[]> later = new ArrayList<>();
+		final Map<String, StringWriter> outputs = new LinkedHashMap<>();
+		ForkJoinTask<Task> future;
+
+		Generation(Tex2HTML start, String text, String source) {
+			super(start, 0);
+			this.start = start;
+			this.text = text;
+			this.source = source;
+		}
+
+		PrintWriter output(String fname) {
+			StringWriter sw = new StringWriter();
+			outputs.put(fname, sw);
+			return new PrintWriter(sw);
+		}
+
+		@Override void run() {
+			generate(new Scanner(new StringReader(text), source));
+		}
+
+		@Override void write() {
+			for (Map.Entry<String, StringWriter> e : outputs.entrySet()) {
+				try (PrintWriter f = new PrintWriter(e.getKey())) {
+					f.write(e.getValue().toString());
+				} catch (FileNotFoundException exc) {
+					System.err.println("Cannot write to " + e.getKey());
+				}
+			}
+		}
+	}
+
+	/** Report what working out part of the namespace of p printed. It is
+	 *  printed the first time the part is used in serial order since the
+	 *  namespace was made or refreshed, so it is not printed again when
+	 *  bindings dropped from pub_bindings are made again, nor when a task
+	 *  that used the part is thrown away and its work done again. Within
+	 *  capture(), it is kept, to be reported when what is being captured
+	 *  is. */
+	private void report(Publication p, String part, Held output) {
+		if (output.isEmpty()) return;
+		Task t = task.get();
+		Held c = captured.get();
+		if (c != null)
+			c.add(new Report(p, part, output));
+		else if (t != null)
+			t.report(p, part, output);
+		else if (reported.computeIfAbsent(p, q -> ConcurrentHashMap.newKeySet()).add(part))
+			output.print();
+	}
+
+	/** The result of what, with the console output it prints kept in
+	 *  into instead. If it fails, the output is printed after all. */
+	private <T> T capture(Held into, Supplier<T> what) {
+		routeConsole();
+		ByteArrayOutputStream[] h = held.get();
+		Held c = captured.get();
+		captured.set(into);
+		into.hold();
+		boolean done = false;
+		try {
+			T r = what.get();
+			done = true;
+			return r;
+		} finally {
+			held.set(h);
+			captured.set(c);
+			if (!done) into.print();
+		}
+	}
+
+	/** Send console output through Console, until restoreConsole(). */
+	private void routeConsole() {
+		if (sysout != null) return;
+		sysout = System.out;
+		syserr = System.err;
+		System.setOut(new PrintStream(new Console(sysout, 0), true));
+		System.setErr(new PrintStream(new Console(syserr, 1), true));
+	}
+
+	private void restoreConsole() {
+		if (sysout == null) return;
+		System.setOut(sysout);
+		System.setErr(syserr);
+		sysout = syserr = null;
+	}
+
+	/** Console output that is held back for the writing thread, if it is
+	 *  doing a task, and otherwise goes to the stream it replaces. */
+	private class Console extends OutputStream {
+		final PrintStream target;
+		final int which;
+
+		Console(PrintStream t, int w) {
+			target = t;
+			which = w;
+		}
+
+		@Override public void write(int b) {
+			ByteArrayOutputStream[] h = held.get();
+			if (h == null) target.write(b);
+			else h[which].write(b);
+		}
+
+		@Override public void write(byte[] b, int off, int len) {
+			ByteArrayOutputStream[] h = held.get();
+			if (h == null) target.write(b, off, len);
+			else h[which].write(b, off, len);
+		}
+
+		@Override public void flush() {
+			if (held.get() == null) target.flush();
+		}
+	}
 }
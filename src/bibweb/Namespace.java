@@ -5,4 +5,13 @@ public interface Namespace {
 	static class LookupFailure extends Exception {}
 
 	String lookup(String name) throws LookupFailure;
+
+	/** Like lookup, but returns null if name is unbound. */
+	default String find(String name) {
+		try {
+			return lookup(name);
+		} catch (LookupFailure e) {
+			return null;
+		}
+	}
 }
@@ -0,0 +1,31 @@
+package bibweb;
+
+import java.util.Comparator;
+import java.util.function.Function;
+
+/** An order of publications by a key, which sorting works out once per
+ *  publication rather than on every comparison. Publications compare as
+ *  their keys do.
+ */
+final class Order<K> implements Comparator<Publication> {
+	final Function<Publication, K> key;
+	final Comparator<? super K> keys;
+
+	Order(Function<Publication, K> key, Comparator<? super K> keys) {
+		this.key = key;
+		this.keys = keys;
+	}
+
+	/** The order of comparator c, with each publication as its own key. */
+	static Order<?> of(Comparator<Publication> c) {
+		return c instanceof Order ? (Order<?>) c : new Order<>(p -> p, c);
+	}
+
+	@Override public int compare(Publication p1, Publication p2) {
+		return keys.compare(key.apply(p1), key.apply(p2));
+	}
+
+	@Override public Order<K> reversed() {
+		return new Order<>(key, keys.reversed());
+	}
+}
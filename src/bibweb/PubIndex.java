@@ -0,0 +1,169 @@
+package bibweb;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jbibtex.Key;
+
+/** The publications numbered densely, in the order of the collection
+ *  they came from, with an inverted index for each selector of a section
+ *  select that picks publications by value: from each value to the set
+ *  of publications that have it. An index is built the first time that
+ *  selector is used, and may be used from any thread. The index is only
+ *  good until a publication is added or one's attributes change.
+ */
+final class PubIndex {
+	/** What the index was made from, as told by the maker. */
+	final int stamp;
+	private final Publication[] pubs;
+	private final BitSet all;
+	private final Map<String, Map<String, BitSet>> indexes =
+			new ConcurrentHashMap<>();
+	private static final BitSet NONE = new BitSet();
+
+	PubIndex(Collection<Publication> c, int stamp) {
+		this.stamp = stamp;
+		pubs = c.toArray(new Publication[0]);
+		all = new BitSet(pubs.length);
+		all.set(0, pubs.length);
+	}
+
+	/** The publications that selector: value selects, which the caller
+	 *  must not modify, or null if the selector has no index and each
+	 *  publication must be tested. */
+	BitSet find(String selector, String value) {
+		switch (selector) {
+		case "newer":
+			return null;
+		case "all":
+			return all;
+		default:
+			BitSet b = indexes.computeIfAbsent(selector, this::index).get(value);
+			return b == null ? NONE : b;
+		}
+	}
+
+	/** Every publication. */
+	BitSet all() {
+		return all;
+	}
+
+	Publication get(int i) {
+		return pubs[i];
+	}
+
+	/** The publications in s, in order. */
+	Publication[] get(BitSet s) {
+		Publication[] r = new Publication[s.cardinality()];
+		int n = 0;
+		for (int i = s.nextSetBit(0); i >= 0; i = s.nextSetBit(i + 1))
+			r[n++] = pubs[i];
+		return r;
+	}
+
+	/** Smallest number of publications worth sorting in parallel. */
+	static final int PARALLEL_SORT = 1 << 13;
+
+	/** The publications in s sorted by order, as a stable sort would
+	 *  leave them, without the first offset of them, and no more than
+	 *  limit of them unless limit is negative. Each publication's key is
+	 *  worked out once, and ties go to the lower number. With a limit,
+	 *  only the best offset + limit are kept while going through s, in a
+	 *  heap whose top is the worst of them. */
+	Publication[] sorted(BitSet s, Comparator<Publication> order,
+			int offset, int limit) {
+		return sorted(s, Order.of(order), offset, limit);
+	}
+
+	private <K> Publication[] sorted(BitSet s, Order<K> order,
+			int offset, int limit) {
+		int n = s.cardinality();
+		int k = limit < 0 ? n : (int) Math.min(n, (long) offset + limit);
+		Comparator<Keyed<K>> by = (a, b) -> {
+			int c = order.keys.compare(a.key, b.key);
+			return c != 0 ? c : Integer.compare(a.number, b.number);
+		};
+		Keyed<K>[] r;
+		if (k == n) {
+			r = keyed(n);
+			int j = 0;
+			for (int i = s.nextSetBit(0); i >= 0; i = s.nextSetBit(i + 1))
+				r[j++] = new Keyed<>(order.key.apply(pubs[i]), i);
+			if (n >= PARALLEL_SORT) Arrays.parallelSort(r, by);
+			else Arrays.sort(r, by);
+		} else {
+			PriorityQueue<Keyed<K>> best = new PriorityQueue<>(k + 1, by.reversed());
+			for (int i = s.nextSetBit(0); i >= 0 && k > 0; i = s.nextSetBit(i + 1)) {
+				Keyed<K> e = new Keyed<>(order.key.apply(pubs[i]), i);
+				if (best.size() == k) {
+					if (by.compare(e, best.peek()) > 0) continue;
+					best.poll();
+				}
+				best.add(e);
+			}
+			r = keyed(best.size());
+			for (int j = r.length - 1; j >= 0; j--)
+				r[j] = best.poll();
+		}
+		int from = Math.min(offset, r.length);
+		Publication[] pa = new Publication[r.length - from];
+		for (int j = from; j < r.length; j++)
+			pa[j - from] = pubs[r[j].number];
+		return pa;
+	}
+
+	/** A publication's number, with its key. */
+	private static final class Keyed<K> {
+		final K key;
+		final int number;
+
+		Keyed(K k, int n) {
+			key = k;
+			number = n;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K> Keyed<K>[] keyed(int n) {
+		return (Keyed<K>[]) new Keyed<?>[n];
+	}
+
+	private Map<String, BitSet> index(String selector) {
+		Map<String, BitSet> index = new HashMap<>();
+		Key k = new Key(selector);
+		for (int i = 0; i < pubs.length; i++) {
+			Publication p = pubs[i];
+			switch (selector) {
+			case "pubtype":
+				add(index, p.pubType(), i);
+				break;
+			case "topic":
+				List<String> topics = p.topics == null
+						? Collections.emptyList() : p.topics;
+				for (String t : topics)
+					add(index, t, i);
+				break;
+			case "author":
+				for (String a : p.authors())
+					add(index, a, i);
+				break;
+			default: // an attribute
+				String v = p.field(selector, k);
+				if (v != null) add(index, v, i);
+			}
+		}
+		return index;
+	}
+
+	private static void add(Map<String, BitSet> index, String value, int i) {
+		index.computeIfAbsent(value, v -> new BitSet()).set(i);
+	}
+}
@@ -22,16 +22,16 @@ public class PubInfo implements ExtInfo {
 
 	@Override public String lookup(String key, String field)
 			throws LookupFailure {
-		if (!pubs.containsKey(key)) throw Context.lookupFailed;
 		Publication p = pubs.get(key);
+		if (p == null) throw Context.lookupFailed;
 		Namespace n = getPubCtxt.get(p);
 		return n.lookup(field);
 	}
 
 	@Override public void put(String key, String field, String value)
 			throws LookupFailure {
-		if (!pubs.containsKey(key)) throw Context.lookupFailed;
 		Publication p = pubs.get(key);
+		if (p == null) throw Context.lookupFailed;
 		p.put(field, value);
 	}
 }
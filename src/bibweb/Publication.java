@@ -11,11 +11,12 @@ import static easyIO.Regex.whitespace;
 
 import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jbibtex.BibTeXDatabase;
 import org.jbibtex.BibTeXEntry;
@@ -39,6 +40,24 @@ public class Publication {
 	/** The entry in the bibtex file it was found in, if any. */
     protected Optional<BibTeXEntry> entry;
 
+	/** What has been worked out from the fields since they last changed,
+	 *  each part when first needed. */
+	private static final class Derived {
+		/** The value of field(name, ...) for each name, or NONE. */
+		final Map<String, Object> fields = new ConcurrentHashMap<>();
+		volatile String pubtype;
+		volatile String[] authors;
+		/** date(), or UNKNOWN. */
+		volatile int date = UNKNOWN;
+		/** yearProblem(), once date is known. */
+		volatile String year_problem;
+	}
+	private static final Object NONE = new Object();
+	private static final int UNKNOWN = Integer.MIN_VALUE;
+
+	/** Replaced by put(). */
+	private volatile Derived derived = new Derived();
+
 	Publication(String k, Scanner sc, Optional<BibTeXEntry> entry) throws ParseError {
 		this.entry = entry;
 		key = k;
@@ -76,6 +95,27 @@ public class Publication {
         bibkey = new Key(k);
     }
 
+	private Publication(Publication p) {
+		entry = p.entry;
+		key = p.key;
+		bibkey = p.bibkey;
+		topics = p.topics;
+		defns = new HashMap<>(p.defns);
+		derived = p.derived;
+	}
+
+	/** This publication as it is now, unaffected by later changes to it.
+	 *  What has been worked out from it so far is shared. */
+	Publication frozen() {
+		return new Publication(this);
+	}
+
+	/** Whether this publication has not changed since frozen was taken
+	 *  from it. */
+	boolean unchangedSince(Publication frozen) {
+		return derived == frozen.derived;
+	}
+
 	public String toString() {
 		return key;
 	}
@@ -84,8 +124,19 @@ public class Publication {
 		return entry;
 	}
 
-	// may return null
+	// may return null. Each override is always used with the same key k,
+	// so the value is remembered by override.
 	String field(String override, Key k) {
+		Map<String, Object> fields = derived.fields;
+		Object v = fields.get(override);
+		if (v == null) {
+			v = lookupField(override, k);
+			fields.put(override, v == null ? NONE : v);
+		}
+		return v == NONE ? null : (String) v;
+	}
+
+	private String lookupField(String override, Key k) {
 		if (defns.containsKey(override)) return defns.get(override);
 		Optional<BibTeXEntry> entry = entry();
 		if (entry.isEmpty()) return null;
@@ -123,10 +174,15 @@ public class Publication {
 	}
 
 	String pubType() {
-		if (defns.containsKey("pubtype")) return defns.get("pubtype");
-		Optional<BibTeXEntry> e = entry();
-        if (e.isEmpty()) return "unknown";
-		else return e.get().getType().getValue().toLowerCase();
+		Derived d = derived;
+		String t = d.pubtype;
+		if (t == null) {
+			if (defns.containsKey("pubtype")) t = defns.get("pubtype");
+			else if (entry().isEmpty()) t = "unknown";
+			else t = entry().get().getType().getValue().toLowerCase();
+			d.pubtype = t = t.intern();
+		}
+		return t;
 	}
 
     // may return null
@@ -152,7 +208,15 @@ public class Publication {
 		return field("organization", BibTeXEntry.KEY_ORGANIZATION);
 	}
 
+	/** The authors, which the caller must not modify. */
 	String[] authors() {
+		Derived d = derived;
+		String[] r = d.authors;
+		if (r == null) d.authors = r = parseAuthors();
+		return r;
+	}
+
+	private String[] parseAuthors() {
 		ArrayList<String> auths = new ArrayList<String>();
 		String a = author();
 		if (a == null) return new String[0];
@@ -161,7 +225,7 @@ public class Publication {
 						 concat(constant("and"),
 						        oneOrMore(whitespace())));
 		while (s.hasNext())
-			auths.add(parseToDelimiter(s, and));
+			auths.add(parseToDelimiter(s, and).intern());
 		return auths.toArray(new String[0]);
 	}
 
@@ -170,18 +234,42 @@ public class Publication {
 		return field("year", BibTeXEntry.KEY_YEAR);
 	}
 	int year() {
-		try {
+		return date() >> 4;
+	}
+
+	/** The year shifted left 4 bits, plus the month (0 if none), so
+	 *  that dates compare as ints. The year is 0 if it is missing or
+	 *  cannot be parsed. */
+	int date() {
+		return date(derived);
+	}
+
+	/** What is wrong with the year, as a warning to print, or null if
+	 *  nothing is. Left to the caller to report, since date() is worked
+	 *  out once and may be worked out by work that is thrown away. */
+	String yearProblem() {
+		Derived d = derived;
+		date(d);
+		return d.year_problem;
+	}
+
+	private int date(Derived d) {
+		int r = d.date;
+		if (r == UNKNOWN) {
+			int year = 0;
 			String y = bibtexYear();
 			if (y == null) {
-				System.err.println("No year given for publication " + key);
-				return 0;
+				d.year_problem = "No year given for publication " + key;
+			} else {
+				try {
+					year = strToYear(y);
+				} catch (NumberFormatException e) {
+					d.year_problem = "Bad year in publication " + key + ": " + y;
+				}
 			}
-			return strToYear(y);
-		} catch (NumberFormatException e) {
-			System.err.println("Bad year in publication " + key + ": " +
-					bibtexYear());
-			return 0;
+			d.date = r = (year << 4) | parseMonth();
 		}
+		return r;
 	}
 
 	/* Parse a bibtex field as a year, in a permissive way.
@@ -196,6 +284,10 @@ public class Publication {
 		return field("month", BibTeXEntry.KEY_MONTH);
 	}
 	int month() {
+		return date() & 0xF;
+	}
+
+	private int parseMonth() {
 		String m = bibtexMonth();
 		for (int i = 0; i < 12; i++)
 			if (Main.month_names[i].equals(m))
@@ -227,7 +319,8 @@ public class Publication {
 		public void update(Publication p);
 	}
 	
-	Collection<Observer> observers = new LinkedList<Observer>();
+	/** Told of each change, once each however often registered. */
+	Set<Observer> observers = new LinkedHashSet<Observer>();
 	
 	void registerObserver(Observer o) {
 		observers.add(o);
@@ -240,6 +333,7 @@ public class Publication {
 
 	public void put(String k, String value) {
 		defns.put(k, value);
+		derived = new Derived();
 		notifyObservers();
 	}
 }
@@ -0,0 +1,149 @@
+package bibweb;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/** An Input that keeps the pushed strings on a stack of slices, so that
+ *  pushing a string copies nothing and allocates nothing once the stack
+ *  has grown to its working size. The bottom slice is the string being
+ *  converted; position() reports how far into it the input has got.
+ */
+class SliceInput implements Input {
+	/** Default limit on the number of nested slices. */
+	static final int DEFAULT_MAX_DEPTH = 20;
+
+	private final int max_depth;
+
+	// The slices, bottom first. Slice i reads data[i] from pos[i] up to
+	// end[i]; macro[i] is the compiled macro whose body data[i] is, or
+	// null. Invariant: every slice below top is nonempty.
+	private CharSequence[] data;
+	private Macro[] macro;
+	private int[] pos, end;
+	private int top = 0;
+
+	private final int source_length;
+	private boolean source; // whether slice 0 is the string being converted
+
+	/** The slice that the last character read by next() came from, or -1
+	 *  if backup() is not possible. The slice may have been popped. */
+	private int last = -1;
+
+	SliceInput(CharSequence s) {
+		this(s, DEFAULT_MAX_DEPTH);
+	}
+
+	SliceInput(CharSequence s, int max_depth) {
+		this.max_depth = max_depth;
+		data = new CharSequence[8];
+		macro = new Macro[8];
+		pos = new int[8];
+		end = new int[8];
+		source_length = s.length();
+		push(s);
+		source = top > 0;
+	}
+
+	public String toString() {
+		if (top == 0)
+			return "\"\"";
+		StringBuilder s = new StringBuilder();
+		for (int i = top - 1; i >= 0 && s.length() < 80; i--)
+			s.append(data[i], pos[i], Math.min(end[i], pos[i] + 80 - s.length()));
+		return "input [" + s + "] at offset " + position();
+	}
+
+	/** The offset in the string being converted of the next character
+	 *  that will be read from it. */
+	int position() {
+		return source ? pos[0] : source_length;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return top > 0;
+	}
+
+	static NoSuchElementException empty = new NoSuchElementException();
+
+	@Override
+	public char next() throws NoSuchElementException {
+		int t = top - 1;
+		if (t < 0)
+			throw empty;
+		char result = data[t].charAt(pos[t]++);
+		if (pos[t] == end[t]) top = t;
+		last = t;
+		return result;
+	}
+
+	@Override
+	public char peek() throws NoSuchElementException {
+		int t = top - 1;
+		if (t < 0)
+			throw empty;
+		return data[t].charAt(pos[t]);
+	}
+
+	/** Put back the character just read by next(). This is a cheaper
+	 *  equivalent of pushing it as a string of its own. */
+	void backup() {
+		if (last < 0) throw new IllegalStateException("nothing to back up");
+		pos[last]--;
+		top = last + 1;
+		last = -1;
+	}
+
+	@Override
+	public void push(CharSequence s) {
+		last = -1;
+		if (s.length() == 0) return;
+		if (top == 0) source = false;
+		if (top == data.length) {
+			int n = 2 * top;
+			data = Arrays.copyOf(data, n);
+			macro = Arrays.copyOf(macro, n);
+			pos = Arrays.copyOf(pos, n);
+			end = Arrays.copyOf(end, n);
+		}
+		if (s instanceof Macro.Text) {
+			Macro.Text t = (Macro.Text) s;
+			t.macro.compile();
+			data[top] = t.macro.body;
+			macro[top] = t.macro;
+			pos[top] = t.start;
+			end[top] = t.end;
+		} else {
+			data[top] = s;
+			macro[top] = null;
+			pos[top] = 0;
+			end[top] = s.length();
+		}
+		top++;
+		if (top > max_depth) throw new Error("recursively expanding too much");
+	}
+
+	@Override
+	public Macro macro() {
+		return top == 0 ? null : macro[top - 1];
+	}
+
+	@Override
+	public int offset() {
+		return pos[top - 1];
+	}
+
+	@Override
+	public int limit() {
+		return end[top - 1];
+	}
+
+	@Override
+	public void skipTo(int i) {
+		int t = top - 1;
+		assert pos[t] <= i && i <= end[t];
+		last = -1;
+		pos[t] = i;
+		if (i == end[t]) top = t;
+	}
+}
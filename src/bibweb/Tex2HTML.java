@@ -1,21 +1,29 @@
 package bibweb;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
 
 import bibweb.Namespace.LookupFailure;
 
 public class Tex2HTML {
-	Context context = new Context();
+	Context context;
 	private ExtInfo ext_info;
 	private static final boolean report_braces = false;
 	private static final boolean report_macros = false;
+	private int max_depth = SliceInput.DEFAULT_MAX_DEPTH;
 
 	Tex2HTML(ExtInfo ext)
 	{
+		context = new Context();
 		String[][] builtin_macros = BuiltinMacros.macros;
 		for (int i = 0; i < builtin_macros.length; i++) {
 			context.add(builtin_macros[i][0], builtin_macros[i][1]);
@@ -23,6 +31,54 @@ public class Tex2HTML {
 		this.ext_info = ext;
 	}
 
+	private Tex2HTML(Tex2HTML t, ExtInfo ext) {
+		context = t.context.fork();
+		ext_info = ext;
+		max_depth = t.max_depth;
+	}
+
+	/** A converter that starts out with the macros now defined in this
+	 *  one, taken without copying them, for use by another thread. Later
+	 *  definitions in either converter are not seen by the other. The two
+	 *  share the ExtInfo, but nothing else. */
+	Tex2HTML fork() {
+		return new Tex2HTML(this, ext_info);
+	}
+
+	/** Like fork(), but \pubinfo and \setpubinfo in the new converter
+	 *  go to ext. */
+	Tex2HTML fork(ExtInfo ext) {
+		return new Tex2HTML(this, ext);
+	}
+
+	/** What r works out with this converter having the macros now
+	 *  defined in t in place of its own, which it has again afterward.
+	 *  Expansions this converter has cached are used where the names they
+	 *  looked up mean the same in t, and those worked out are kept. */
+	<T> T with(Tex2HTML t, Supplier<T> r) {
+		Context c = context, tc = t.context.fork();
+		long version = tc.version();
+		context = tc;
+		try {
+			return r.get();
+		} finally {
+			context = c;
+			if (tc.version() != version) c.touch();
+		}
+	}
+
+	/** Whether t converts as this one does: it has the same macros and
+	 *  namespaces visible, and the same ExtInfo. */
+	boolean sameAs(Tex2HTML t) {
+		return ext_info == t.ext_info && max_depth == t.max_depth
+				&& context.sameBindings(t.context);
+	}
+
+	/** The number of levels pushed onto the context. */
+	int depth() {
+		return context.depth();
+	}
+
 	public void push() {
 		context.push();
 	}
@@ -31,6 +87,13 @@ public class Tex2HTML {
 		context.pop();
 	}
 
+	/** Limit the nesting of expansions within one conversion to depth. */
+	public void setMaxDepth(int depth) {
+		max_depth = depth;
+		expansions.clear();
+		sentence_expansions.clear();
+	}
+
 	public void addMacro(String from, String to) {
 		if (to != null)
 		context.add(from, to);
@@ -49,7 +112,7 @@ public class Tex2HTML {
 	}
 	
 	static Set<String> special_macros = new HashSet<>();
-	{
+	static {
 		special_macros.add("ifdef");
 		special_macros.add("ifndef");
 		special_macros.add("ifeq");
@@ -60,20 +123,313 @@ public class Tex2HTML {
 		special_macros.add("depth");
 	}
 
-	String convert(String s, boolean sentence_case) throws T2HErr {
+	/** Builtin names such as 'e and vc that are a macro name followed by
+	 *  plain text, indexed by the two parts. Invoking an undefined macro
+	 *  expands the name that it spells with its converted argument, and
+	 *  plain text converts to itself, so accents can be resolved through
+	 *  this table without converting the argument or building the name. */
+	static Map<String, Map<String, String>> compound_names = new HashMap<>();
+	static {
+		for (String[] m : BuiltinMacros.macros) {
+			String k = m[0];
+			// how long a macro name at the start of k can be
+			int n = 0;
+			if ("'`\",~^".indexOf(k.charAt(0)) >= 0) n = 1;
+			else while (n < k.length() && Character.isAlphabetic(k.charAt(n))) n++;
+			for (int j = 1; j <= n && j < k.length(); j++) {
+				String arg = k.substring(j);
+				if (arg.chars().allMatch(c -> Macro.isText((char) c)))
+					compound_names.computeIfAbsent(k.substring(0, j), x -> new HashMap<>())
+						.put(arg, k);
+			}
+		}
+	}
+
+	/** A cached result of convert(), with the names it looked up and what
+	 *  each resolved to (null if unbound). */
+	static class Expansion {
+		final String result;
+		final String[] names;
+		final CharSequence[] values;
+		long version; // context version at which it was last known valid
+
+		Expansion(String r, String[] n, CharSequence[] v, long ver) {
+			result = r;
+			names = n;
+			values = v;
+			version = ver;
+		}
+	}
+
+	/** Maximum number of cached expansions for each setting of sentence_case. */
+	static final int cache_size = 8192;
+
+	@SuppressWarnings("serial")
+	static class ExpansionCache extends LinkedHashMap<String, Expansion> {
+		ExpansionCache() {
+			super(16, 0.75f, true);
+		}
+
+		@Override protected boolean removeEldestEntry(Map.Entry<String, Expansion> e) {
+			return size() > cache_size;
+		}
+	}
+
+	private ExpansionCache expansions = new ExpansionCache(),
+		sentence_expansions = new ExpansionCache();
+	private int cache_hits = 0, cache_misses = 0;
+
+	/** Names looked up by the conversions in progress, and what they
+	 *  resolved to. A null name means that the result depends on something
+	 *  other than the context, so it cannot be cached. */
+	private List<String> dep_names = new ArrayList<>();
+	private List<CharSequence> dep_values = new ArrayList<>();
+	private int converting = 0; // number of conversions in progress
+
+	int cacheHits() {
+		return cache_hits;
+	}
+
+	int cacheMisses() {
+		return cache_misses;
+	}
+
+	/** Convert s to HTML. Results for strings are cached and reused as long
+	 *  as every name the conversion looked up still resolves to the same
+	 *  definition. */
+	String convert(CharSequence s, boolean sentence_case) throws T2HErr {
+		if (!(s instanceof String)) {
+			// an argument; not worth keeping
+			converting++;
+			try {
+				return translate(s, sentence_case);
+			} finally {
+				doneConverting();
+			}
+		}
+		ExpansionCache cache = sentence_case ? sentence_expansions : expansions;
+		Expansion x = cached(cache, (String) s);
+		if (x != null) return x.result;
+		int start = dep_names.size(), depth = context.depth();
+		converting++;
+		try {
+			String result = translate(s, sentence_case);
+			// Unbalanced braces leave scopes behind, so the context is
+			// not the same one that the result was computed in.
+			if (context.depth() != depth) uncacheable();
+			x = expansion(result, start);
+			if (x != null) cache.put((String) s, x);
+			return result;
+		} finally {
+			doneConverting();
+		}
+	}
+
+	/** Convert s to HTML, appending the result to out as it is produced
+	 *  instead of building it in memory first. A cached result is used if
+	 *  there is one, but the result is not added to the cache. */
+	void convert(CharSequence s, Appendable out) throws T2HErr, IOException {
+		if (s instanceof String) {
+			Expansion x = cached(expansions, (String) s);
+			if (x != null) {
+				out.append(x.result);
+				return;
+			}
+		}
+		converting++;
+		try {
+			translate(s, false, out);
+		} finally {
+			doneConverting();
+		}
+	}
+
+	/** The valid cached expansion of s, or null if there is none. */
+	private Expansion cached(ExpansionCache cache, String s) {
+		Expansion x = cache.get(s);
+		if (x == null || !valid(x)) {
+			cache_misses++;
+			return null;
+		}
+		cache_hits++;
+		if (converting > 0) {
+			for (int i = 0; i < x.names.length; i++) {
+				dep_names.add(x.names[i]);
+				dep_values.add(x.values[i]);
+			}
+		}
+		return x;
+	}
+
+	private void doneConverting() {
+		if (--converting == 0) {
+			dep_names.clear();
+			dep_values.clear();
+		}
+	}
+
+	private static boolean same(CharSequence v1, CharSequence v2) {
+		return v1 == v2 || v1 instanceof String && v1.equals(v2);
+	}
+
+	private boolean valid(Expansion x) {
+		long version = context.version();
+		if (x.version == version) return true;
+		for (int i = 0; i < x.names.length; i++) {
+			if (!same(x.values[i], context.expansion(x.names[i])))
+				return false;
+		}
+		x.version = version;
+		return true;
+	}
+
+	/** A cache entry for a conversion whose lookups were recorded from
+	 *  index start, or null if the result cannot be cached. */
+	private Expansion expansion(String result, int start) {
+		Map<String, CharSequence> deps = new LinkedHashMap<>();
+		for (int i = start; i < dep_names.size(); i++) {
+			String n = dep_names.get(i);
+			if (n == null) return null;
+			CharSequence v = dep_values.get(i);
+			if (deps.containsKey(n)) {
+				// shadowed by a local definition
+				if (!same(deps.get(n), v)) return null;
+			} else {
+				deps.put(n, v);
+			}
+		}
+		return new Expansion(result,
+				deps.keySet().toArray(new String[0]),
+				deps.values().toArray(new CharSequence[0]),
+				context.version());
+	}
+
+	/** Look up name on behalf of the conversions in progress. */
+	private CharSequence find(String name) {
+		CharSequence v = context.expansion(name);
+		dep_names.add(name);
+		dep_values.add(v);
+		return v;
+	}
+
+	/** Record that the conversions in progress cannot be cached. */
+	private void uncacheable() {
+		dep_names.add(null);
+		dep_values.add(null);
+	}
+
+	/** Scratch buffers for one level of nested translation, kept from one
+	 *  conversion to the next so that scanning a macro invocation does not
+	 *  allocate them afresh. */
+	private static class Buffers {
+		final StringBuilder name = new StringBuilder(), arg = new StringBuilder();
+		final List<CharSequence> args = new ArrayList<>();
+	}
+
+	private List<Buffers> buffers = new ArrayList<>();
+	private int nesting = 0; // number of translations in progress
+
+	private String translate(CharSequence s, boolean sentence_case) throws T2HErr {
+		StringBuilder ret = new StringBuilder();
+		try {
+			translate(s, sentence_case, ret);
+		} catch (IOException e) {
+			throw new Error("Internal error: " + e);
+		}
+		return ret.toString();
+	}
+
+	/** Convert s to HTML, appending the result to ret. */
+	private void translate(CharSequence s, boolean sentence_case, Appendable ret)
+			throws T2HErr, IOException {
 		State state = State.Start;
 		StringBuilder macro_name = null;
-		List<String> macro_args = null;
+		String name = null; // the macro name, once it is complete
+		boolean special = false; // whether name is a special macro
+		List<CharSequence> macro_args = null;
 		StringBuilder cur_arg = null;
-		StringBuilder ret = new StringBuilder();
 		final char eof = (char) -1;
 		int brace_depth = 0, macro_depth = 0;
+		if (nesting == buffers.size()) buffers.add(new Buffers());
+		Buffers buf = buffers.get(nesting++);
 		try {
 			context.push();
 
-			Input inp = new StringInput(s);
+			SliceInput inp = new SliceInput(s, max_depth);
 			char c;
 			while (state != State.EOF) {
+				Macro m = inp.macro();
+				if (m != null) {
+					// The next characters come from a lexed macro body, so
+					// whole tokens can be consumed at once where the result
+					// is the same as reading them one at a time.
+					int i = inp.offset(), e = m.end(i);
+					switch (state) {
+					case Normal:
+					case Whitespace:
+					case Start:
+						switch (m.kind(i)) {
+						case Macro.TEXT:
+							if (sentence_case && brace_depth == 0) {
+								for (int j = i; j < e; j++) {
+									c = m.body.charAt(j);
+									if (Character.isAlphabetic(c) && state != State.Start)
+										ret.append(Character.toLowerCase(c));
+									else
+										ret.append(c);
+									state = State.Normal;
+								}
+							} else {
+								ret.append(m.body, i, e);
+							}
+							state = State.Normal;
+							inp.skipTo(e);
+							continue;
+						case Macro.SPACE:
+							if (state == State.Normal)
+								ret.append(m.body.charAt(i));
+							state = State.Whitespace;
+							inp.skipTo(e);
+							continue;
+						case Macro.NAME:
+						case Macro.SPECIAL:
+							// only if the name cannot continue into the
+							// following input
+							if (e < inp.limit()) {
+								macro_name = null;
+								name = m.name(i);
+								special = m.kind(i) == Macro.SPECIAL;
+								state = State.AlphMacroName;
+								inp.skipTo(e);
+								continue;
+							}
+							break;
+						}
+						break;
+					case AlphMacroName:
+					case FullMacro:
+					case ShortMacroArg:
+						// a whole argument in braces
+						if (m.kind(i) == Macro.OPEN && e < inp.limit()) {
+							if (state != State.FullMacro) {
+								if (name == null) {
+									name = macro_name.toString();
+									special = special_macros.contains(name);
+								}
+								macro_args = buf.args;
+								macro_args.clear();
+								macro_depth = brace_depth;
+							}
+							macro_args.add(new Macro.Text(m, i + 1, e));
+							inp.skipTo(e + 1);
+							state = State.FullMacro;
+							continue;
+						}
+						break;
+					default:
+						break;
+					}
+				}
 				if (inp.hasNext())
 					c = inp.next();
 				else
@@ -173,8 +529,8 @@ public class Tex2HTML {
 					case ',':
 					case '~':
                     case '^':
-						macro_name = new StringBuilder();
-						macro_name.append(c);
+						name = String.valueOf(c);
+						special = false;
 						state = State.ShortMacroArg;
 						cur_arg = null;
 						break;
@@ -184,8 +540,10 @@ public class Tex2HTML {
                         break;
 					default:
 						if (Character.isAlphabetic(c)) {
-							macro_name = new StringBuilder();
+							macro_name = buf.name;
+							macro_name.setLength(0);
 							macro_name.append(c);
+							name = null;
 							state = State.AlphMacroName;
 							break;
 						} else {
@@ -196,23 +554,29 @@ public class Tex2HTML {
 					break;
 				case AlphMacroName:
 					if (Character.isAlphabetic(c)) {
-						assert macro_name != null;
+						assert macro_name != null && name == null;
 						macro_name.append(c);
 						// stay in state
-					} else if (c == '{') {
+						break;
+					}
+					if (name == null) {
+						name = macro_name.toString();
+						special = special_macros.contains(name);
+					}
+					if (c == '{') {
 						state = State.LongMacroArg;
-						macro_args = new ArrayList<>();
-						cur_arg = new StringBuilder();
+						macro_args = buf.args;
+						macro_args.clear();
+						cur_arg = buf.arg;
+						cur_arg.setLength(0);
 						
 						macro_depth = brace_depth;
 						if (report_braces) System.out.println("incrementing brace depth in macro (1) to " + brace_depth + " at " + inp);
 						brace_depth++;
 					} else {
 						if (c != eof && c != ' ')
-							inp.push(Character.toString(c));
-						assert macro_name != null;
-						String name = macro_name.toString();
-						if (special_macros.contains(name)) {
+							inp.backup();
+						if (special) {
 							throw new T2HErr("Unexpected character \'" + c
 									+ "\': special macro \\" + name
 									+ " expects argument in braces");
@@ -261,12 +625,12 @@ public class Tex2HTML {
 						brace_depth++;
 //						System.out.println("Incrementing brace depth at full macro " + inp);
 						state = State.LongMacroArg;
-						cur_arg = new StringBuilder();
+						cur_arg = buf.arg;
+						cur_arg.setLength(0);
 					} else {
-						assert macro_name != null && macro_args != null;
-						String name = macro_name.toString();
-						inp.push(Character.toString(c));
-						if (special_macros.contains(name)) {
+						assert name != null && macro_args != null;
+						if (c != eof) inp.backup();
+						if (special) {
 							handleSpecialMacro(inp, name, macro_args);
 						} else {
 							inp.push(expandMacro(name, macro_args));
@@ -279,19 +643,22 @@ public class Tex2HTML {
 						state = State.LongMacroArg;
 						macro_depth = brace_depth;
 						brace_depth++;
-						cur_arg = new StringBuilder();
-						macro_args = new ArrayList<>();
+						cur_arg = buf.arg;
+						cur_arg.setLength(0);
+						macro_args = buf.args;
+						macro_args.clear();
 					} else if (c == eof) {
-						assert macro_name != null;
-						inp.push(expandMacro(macro_name.toString(),
-								new ArrayList<String>()));
+						assert name != null;
+						inp.push(expandMacro(name,
+								Collections.<CharSequence>emptyList()));
 						state = State.Normal;
 					} else if (c == '\\' && cur_arg == null) {
-						List<String> args = new ArrayList<String>();
-						cur_arg = new StringBuilder(c);
+						cur_arg = buf.arg;
+						cur_arg.setLength(0);
 						// keep reading argument
 					} else {
-						List<String> args = new ArrayList<String>();
+						List<CharSequence> args = buf.args;
+						args.clear();
 						if (cur_arg == null) {
 							args.add(Character.toString(c));
 						} else {
@@ -305,8 +672,8 @@ public class Tex2HTML {
 								args.add(cur_arg.toString());
 							}
 						}
-						assert macro_name != null;
-						inp.push(expandMacro(macro_name.toString(), args));
+						assert name != null;
+						inp.push(expandMacro(name, args));
 						state = State.Normal;
 					}
 					break;
@@ -314,28 +681,23 @@ public class Tex2HTML {
 					throw new T2HErr("Unexpected state " + state);
 				}
 			}
-			return ret.toString();
 		} finally {
+			nesting--;
 			context.pop();
 		}
 	}
 
 	boolean inScope(String name) {
-		try {
-			context.lookup(name);
-			return true;
-		} catch (LookupFailure f) {
-		}
-		return false;
-		}
+		return find(name) != null;
+	}
 
-	private void handleSpecialMacro(Input inp, String name, List<String> args) throws T2HErr {
+	private void handleSpecialMacro(Input inp, String name, List<CharSequence> args) throws T2HErr {
         if (report_macros) System.out.println("handling special macro \\" + name + args);
 		switch (name) {
 		case "ifdef":
 		case "ifndef":
 			if (args.size() != 2) throw new T2HErr("\\ifdef and \\ifndef expect 2 arguments (not " + args.size() + ")");
-			String n = args.get(0);
+			String n = args.get(0).toString();
 			if (n.charAt(0) == '\\') n = n.substring(1);
 			if (inScope(n) == name.equals("ifdef"))
 				inp.push(args.get(1));
@@ -353,6 +715,7 @@ public class Tex2HTML {
 
 			String key = convert(args.get(0), false);
 			String field = convert(args.get(1), false);
+			uncacheable();
 			try { inp.push(ext_info.lookup(key, field)); } catch (LookupFailure e) {}
 			break;
 		}
@@ -361,6 +724,8 @@ public class Tex2HTML {
 			String key = convert(args.get(0), false);
 			String field = convert(args.get(1), false);
 			String value = convert(args.get(2), false);
+			uncacheable();
+			context.touch();
 			try { ext_info.put(key, field, value); } catch (LookupFailure e) {
 				throw new Error("Cannot set field " + field + " of nonexistent publication " + key);
 			}
@@ -368,11 +733,12 @@ public class Tex2HTML {
 		}
 		case "def":
 			if (args.size() != 2) throw new T2HErr("Usage: \\def{macro}{expansion}");
-			String mname = args.get(0);
+			String mname = args.get(0).toString();
 			if (mname.charAt(0) == '\\') mname = mname.substring(1);
-			context.add(mname, args.get(1));
+			context.add(mname, args.get(1).toString());
 			break;
 		case "depth":
+			uncacheable();
 			inp.push("" + context.depth());
 			break;
 		default:
@@ -380,43 +746,56 @@ public class Tex2HTML {
 		}
 	}
 
-	private String expandMacro(String macro_name) {
+	private CharSequence expandMacro(String macro_name) {
 		if (report_macros) System.out.print("handling simple macro \\" + macro_name);
-		try {
-			String result = context.lookup(macro_name);
-			if (report_macros) System.out.println(" -> " + result);
-			return result;
-		} catch (LookupFailure e) {
+		CharSequence result = find(macro_name);
+		if (result == null)
 			return "<em>Don't know how to expand parameterless macro "
 							+ macro_name + "</em>";
-		}
+		if (report_macros) System.out.println(" -> " + result);
+		return result;
 	}
 
-	private String expandMacro(String macro_name, List<String> macro_argument) {
+	private CharSequence expandMacro(String macro_name, List<CharSequence> macro_argument) {
 		assert macro_argument != null;
 		if (report_macros) System.out.print("handling macro \\" + macro_name + macro_argument);
-		try {
-			String result = context.lookup(macro_name);
-			// XXX should watch for escaped # here.
-
-			for (int i = 0; i < macro_argument.size(); i++) {
-				result = result.replaceAll("#" + (i+1), macro_argument.get(i));
+		CharSequence expansion = find(macro_name);
+		if (expansion != null) {
+			Macro m;
+			if (expansion instanceof Macro.Text) {
+				m = ((Macro.Text) expansion).macro;
+			} else if (expansion.toString().indexOf('#') >= 0) {
+				m = new Macro(expansion.toString());
+			} else {
+				m = null;
 			}
+			if (m == null || !m.hasParams()) {
+				// nothing to substitute; keep any lexed body
+				if (report_macros) System.out.println(" -> " + expansion);
+				return expansion;
+			}
+			String result = m.substitute(macro_argument);
 			if (report_macros) System.out.println(" -> " + result);
 			return result;
-		} catch (LookupFailure e) {
 		}
 
-		try {
-			if (macro_argument.size() > 0) {
+		if (macro_argument.size() > 0) {
+			CharSequence result = null;
+			Map<String, String> compounds = compound_names.get(macro_name);
+			String compound = compounds == null ? null
+					: compounds.get(macro_argument.get(0).toString());
+			if (compound != null) {
+				result = find(compound);
+			} else {
 				try {
 					String arg = convert(macro_argument.get(0), false);
-					String result = context.lookup(macro_name + arg);
-					if (report_macros) System.out.println(" ->> " + result);
-					return result;
+					result = find(macro_name + arg);
 				} catch (T2HErr e) {}
 			}
-		} catch (LookupFailure e) {
+			if (result != null) {
+				if (report_macros) System.out.println(" ->> " + result);
+				return result;
+			}
 		}
 		if (report_macros) {
 			System.out.println("don't know how to expand macro " + macro_name);